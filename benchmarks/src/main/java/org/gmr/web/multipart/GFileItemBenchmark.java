@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmark of the accessors of a {@link GFileItem} holding a text field of the given size.
+ *
+ * <p>The string accessors and <code>getSize()</code> leave the item unchanged, so they all read a single item
+ * written once per trial. <code>get()</code> caches the content of the item on its first call, so each invocation
+ * needs an item of its own. Rather than writing it in a per-invocation setup, which is unreliable at this time
+ * scale, each iteration writes a batch of items up front and each invocation reads the next one: the score of
+ * <code>get()</code> is the time to read a whole batch of {@value #BATCH_SIZE} items, as the first access of a
+ * request does.
+ *
+ * @author kernel164
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GFileItemBenchmark {
+
+	/** Number of items read per iteration by <code>get()</code>. */
+	static final int BATCH_SIZE = 1000;
+
+	@Param({ "16", "1024", "65536" })
+	private int size;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	private String charset;
+
+	private GFileItemFactory factory;
+
+	private byte[] content;
+
+	private GFileItem item;
+
+	@Setup
+	public void setUp() throws IOException {
+		factory = new GFileItemFactory();
+		factory.setSizeThreshold(Math.max(size, GFileItemFactory.DEFAULT_SIZE_THRESHOLD));
+		content = GMultipartBodies.text(size, charset).getBytes(charset);
+		item = write();
+	}
+
+	@TearDown
+	public void tearDown() {
+		item.delete();
+	}
+
+	private GFileItem write() throws IOException {
+		GFileItem fileItem = new GFileItem("field", "text/plain; charset=" + charset, true, null, factory);
+		OutputStream out = fileItem.getOutputStream();
+		out.write(content);
+		out.close();
+		return fileItem;
+	}
+
+	/**
+	 * The batch of items read by <code>get()</code>, written before each iteration.
+	 */
+	@State(Scope.Thread)
+	public static class Batch {
+
+		private final List<GFileItem> items = new ArrayList<GFileItem>(BATCH_SIZE);
+
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void write(GFileItemBenchmark benchmark) throws IOException {
+			for (int n = 0; n < BATCH_SIZE; n++) {
+				items.add(benchmark.write());
+			}
+			next = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void delete() {
+			for (GFileItem fileItem : items) {
+				fileItem.delete();
+			}
+			items.clear();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 10, batchSize = BATCH_SIZE)
+	@Measurement(iterations = 20, batchSize = BATCH_SIZE)
+	public byte[] get(Batch batch) {
+		return batch.items.get(batch.next++).get();
+	}
+
+	@Benchmark
+	public long getSize() {
+		return item.getSize();
+	}
+
+	@Benchmark
+	public String getString() {
+		return item.getString();
+	}
+
+	@Benchmark
+	public String getStringWithCharset() throws UnsupportedEncodingException {
+		return item.getString(charset);
+	}
+}
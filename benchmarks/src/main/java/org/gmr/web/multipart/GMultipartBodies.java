@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * <p>Synthetic multipart/form-data bodies for the benchmarks.
+ *
+ * <p>A body has a number of parts of the same size, either all form fields, all files, or alternating
+ * fields and files. Field values are text in the given charset, with non ASCII characters when the charset
+ * allows it; file contents are random bytes, seeded so that runs are comparable.
+ *
+ * @author kernel164
+ */
+final class GMultipartBodies {
+
+	static final String BOUNDARY = "----GMultipartBenchmarkBoundary7MA4YWxkTrZu0gW";
+
+	static final String FIELDS = "fields";
+
+	static final String FILES = "files";
+
+	static final String MIXED = "mixed";
+
+	private GMultipartBodies() {
+	}
+
+	/**
+	 * Creates a body.
+	 *
+	 * @param partCount the number of parts.
+	 * @param partSize the size of the content of each part, in bytes (approximately for multi-byte text).
+	 * @param mix {@link #FIELDS}, {@link #FILES} or {@link #MIXED}.
+	 * @param charset the charset of the field values and part headers.
+	 * @return the body.
+	 */
+	static byte[] create(int partCount, int partSize, String mix, String charset) throws IOException {
+		Random random = new Random(partCount * 31L + partSize);
+		String text = text(partSize, charset);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (int i = 0; i < partCount; i++) {
+			boolean file = FILES.equals(mix) || (MIXED.equals(mix) && (i & 1) == 1);
+			body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+			if (file) {
+				body.write(("Content-Disposition: form-data; name=\"file" + i + "\"; filename=\"upload-" + i + ".bin\"\r\n"
+						+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(charset));
+				byte[] content = new byte[partSize];
+				random.nextBytes(content);
+				body.write(content);
+			} else {
+				body.write(("Content-Disposition: form-data; name=\"field" + i + "\"\r\n\r\n").getBytes(charset));
+				body.write(text.getBytes(charset));
+			}
+			body.write("\r\n".getBytes("ISO-8859-1"));
+		}
+		body.write(("--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+		return body.toByteArray();
+	}
+
+	/**
+	 * Creates a POST request carrying the given body.
+	 *
+	 * @param body the body, from {@link #create}.
+	 * @param charset the charset of the request.
+	 * @return the request.
+	 */
+	static MockHttpServletRequest request(byte[] body, String charset) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/upload");
+		request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+		request.setCharacterEncoding(charset);
+		request.setContent(body);
+		return request;
+	}
+
+	/**
+	 * Creates a text of the given size in the given charset.
+	 *
+	 * @param size the size of the encoded text, in bytes.
+	 * @param charset the charset.
+	 * @return the text.
+	 */
+	static String text(int size, String charset) throws UnsupportedEncodingException {
+		String sample = ("UTF-8".equalsIgnoreCase(charset) ? "gmultipart \u00e9\u00fc\u00df \u65e5\u672c " : "gmultipart \u00e9\u00fc\u00df ");
+		int sampleSize = sample.getBytes(charset).length;
+		StringBuilder text = new StringBuilder(size);
+		for (int i = 0; i < size / sampleSize; i++) {
+			text.append(sample);
+		}
+		for (int i = (size / sampleSize) * sampleSize; i < size; i++) {
+			text.append('x');
+		}
+		return text.toString();
+	}
+}
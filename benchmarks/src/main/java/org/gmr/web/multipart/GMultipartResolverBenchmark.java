@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+/**
+ * <p>End to end benchmark of {@link GMultipartResolver#resolveMultipart}: parses a synthetic body from a mock
+ * request, reads the files and parameters, then cleans the request up.
+ *
+ * <p>Throughput and sampled latency (with percentiles) are reported; run with <code>-prof gc</code>, as
+ * {@link GBenchmarks} does, for the allocation rate. Compares the commons-fileupload parser with the native
+ * {@link GMultipartParser}.
+ *
+ * @author kernel164
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GMultipartResolverBenchmark {
+
+	@Param({ "8", "512" })
+	private int partCount;
+
+	@Param({ "128", "65536" })
+	private int partSize;
+
+	@Param({ GMultipartBodies.FIELDS, GMultipartBodies.FILES, GMultipartBodies.MIXED })
+	private String mix;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	private String charset;
+
+	@Param({ "false", "true" })
+	private boolean nativeParser;
+
+	private GMultipartResolver resolver;
+
+	private byte[] body;
+
+	@Setup
+	public void setUp() throws IOException {
+		resolver = new GMultipartResolver();
+		resolver.setNativeParser(nativeParser);
+		body = GMultipartBodies.create(partCount, partSize, mix, charset);
+	}
+
+	@Benchmark
+	public void resolveMultipart(Blackhole blackhole) {
+		MultipartHttpServletRequest request = resolver.resolveMultipart(GMultipartBodies.request(body, charset));
+		try {
+			blackhole.consume(request.getFileMap());
+			blackhole.consume(request.getParameterMap());
+		} finally {
+			resolver.cleanupMultipart(request);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmark of the writes to the {@link GOutputStream} of a {@link GFileItem}: writes a part of the given
+ * size in chunks of the given size, then deletes the item.
+ *
+ * <p>With the default size threshold, parts of 4KB stay in memory while parts of 1MB spill to a temporary file.
+ *
+ * @author kernel164
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GOutputStreamBenchmark {
+
+	@Param({ "1", "64", "8192" })
+	private int chunkSize;
+
+	@Param({ "4096", "1048576" })
+	private int partSize;
+
+	@Param({ "0", "64" })
+	private int poolSize;
+
+	private GFileItemFactory factory;
+
+	private byte[] chunk;
+
+	@Setup
+	public void setUp() {
+		GMemoryStorageFactory storageFactory = new GMemoryStorageFactory();
+		storageFactory.setPoolSize(poolSize);
+		factory = new GFileItemFactory();
+		factory.setStorageFactory(storageFactory);
+		chunk = new byte[chunkSize];
+		new Random(chunkSize).nextBytes(chunk);
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+		GFileItem item = new GFileItem("file", "application/octet-stream", false, "upload.bin", factory);
+		try {
+			OutputStream out = item.getOutputStream();
+			for (int written = 0; written < partSize; written += chunkSize) {
+				out.write(chunk, 0, Math.min(chunkSize, partSize - written));
+			}
+			out.close();
+			return item.getSize();
+		} finally {
+			item.delete();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.fileupload.FileItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmark of {@link GFileUploadSupport#parseFileItems}, turning already written file items into the
+ * files and parameters of a request.
+ *
+ * <p>Parsing deletes the form field items, so each invocation needs items of its own. Rather than writing them in
+ * a per-invocation setup, which is unreliable at this time scale, each iteration writes a batch of item lists up
+ * front and each invocation parses the next one: the score is the time to parse a whole batch of
+ * {@value #BATCH_SIZE} lists.
+ *
+ * @author kernel164
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = GParseFileItemsBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = GParseFileItemsBenchmark.BATCH_SIZE)
+@Fork(1)
+public class GParseFileItemsBenchmark {
+
+	/** Number of item lists parsed per iteration. */
+	static final int BATCH_SIZE = 50;
+
+	@Param({ "8", "512" })
+	private int partCount;
+
+	@Param({ "32", "1024" })
+	private int partSize;
+
+	@Param({ GMultipartBodies.FIELDS, GMultipartBodies.MIXED })
+	private String mix;
+
+	@Param({ "UTF-8", "ISO-8859-1" })
+	private String charset;
+
+	private GMultipartResolver resolver;
+
+	private byte[] value;
+
+	private final List<List<FileItem>> batch = new ArrayList<List<FileItem>>(BATCH_SIZE);
+
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		resolver = new GMultipartResolver();
+		value = GMultipartBodies.text(partSize, charset).getBytes(charset);
+	}
+
+	@Setup(Level.Iteration)
+	public void write() throws IOException {
+		for (int n = 0; n < BATCH_SIZE; n++) {
+			batch.add(writeFileItems());
+		}
+		next = 0;
+	}
+
+	private List<FileItem> writeFileItems() throws IOException {
+		List<FileItem> fileItems = new ArrayList<FileItem>(partCount);
+		for (int i = 0; i < partCount; i++) {
+			boolean file = GMultipartBodies.MIXED.equals(mix) && (i & 1) == 1;
+			FileItem item = resolver.getFileItemFactory().createItem((file ? "file" : "field") + i,
+					(file ? "application/octet-stream" : null), !file, (file ? "upload-" + i + ".bin" : null));
+			OutputStream out = item.getOutputStream();
+			out.write(value);
+			out.close();
+			fileItems.add(item);
+		}
+		return fileItems;
+	}
+
+	@TearDown(Level.Iteration)
+	public void delete() {
+		for (List<FileItem> fileItems : batch) {
+			resolver.cleanupFileItems(fileItems);
+		}
+		batch.clear();
+	}
+
+	@Benchmark
+	public Object parseFileItems() {
+		return resolver.parseFileItems(batch.get(next++), charset);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>An input stream reading a sequence of byte buffers, from the position to the limit of each buffer,
+ * without copying them first.
+ *
+ * <p>The stream consumes the given buffers; pass views (see {@link ByteBuffer#duplicate()}) to keep the
+ * originals untouched. Subclasses may invalidate the stream, e.g. once the buffers are reused, through
+ * {@link #checkReadable()}.
+ *
+ * @author kernel164
+ * @see GChunkedBuffer
+ * @see GMappedFileStorage
+ */
+public class GByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer[] buffers;
+
+	private final int[] start;
+
+	private int index;
+
+	private int markIndex;
+
+	private int markPosition;
+
+	/**
+	 * Create a new input stream over the given buffers.
+	 *
+	 * @param buffers the buffers to read, in order.
+	 */
+	public GByteBufferInputStream(ByteBuffer... buffers) {
+		this.buffers = buffers;
+		this.start = new int[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			start[i] = buffers[i].position();
+		}
+		this.markPosition = (buffers.length > 0 ? start[0] : 0);
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkReadable();
+		ByteBuffer buffer = current();
+		return (buffer != null ? buffer.get() & 0xff : -1);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		checkReadable();
+		if (len == 0) {
+			return 0;
+		}
+		int total = 0;
+		ByteBuffer buffer;
+		while (len > 0 && (buffer = current()) != null) {
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			off += count;
+			len -= count;
+			total += count;
+		}
+		return (total > 0 ? total : -1);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkReadable();
+		long total = 0;
+		ByteBuffer buffer;
+		while (n > 0 && (buffer = current()) != null) {
+			int count = (int) Math.min(n, buffer.remaining());
+			buffer.position(buffer.position() + count);
+			n -= count;
+			total += count;
+		}
+		return total;
+	}
+
+	@Override
+	public int available() throws IOException {
+		checkReadable();
+		long remaining = 0;
+		for (int i = index; i < buffers.length; i++) {
+			remaining += buffers[i].remaining();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		markIndex = index;
+		markPosition = (index < buffers.length ? buffers[index].position() : 0);
+	}
+
+	@Override
+	public synchronized void reset() {
+		for (int i = markIndex + 1; i <= index && i < buffers.length; i++) {
+			buffers[i].position(start[i]);
+		}
+		index = markIndex;
+		if (index < buffers.length) {
+			buffers[index].position(markPosition);
+		}
+	}
+
+	/**
+	 * Called before reading from the buffers. Does nothing by default.
+	 *
+	 * @throws IOException if the buffers may no longer be read.
+	 */
+	protected void checkReadable() throws IOException {
+	}
+
+	/**
+	 * Returns the first buffer with remaining data, or <code>null</code> at the end of the stream.
+	 */
+	private ByteBuffer current() {
+		while (index < buffers.length) {
+			if (buffers[index].hasRemaining()) {
+				return buffers[index];
+			}
+			index++;
+		}
+		return null;
+	}
+}
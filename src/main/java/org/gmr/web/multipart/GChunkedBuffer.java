@@ -0,0 +1,347 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>An in-memory storage which keeps its data in a list of fixed-size chunks instead of a
+ * single growing array. The chunks are either heap or direct (off-heap) buffers.
+ *
+ * <p>Unlike {@link java.io.ByteArrayOutputStream}, growing the buffer never reallocates or copies the
+ * data written so far, and large uploads never require one huge contiguous array. The data can be read
+ * back through {@link #getInputStream()} straight from the chunks; a contiguous copy is only built by
+ * {@link #toByteArray()}.
+ *
+ * <p>The chunks are either allocated by the buffer itself or borrowed from a {@link GSegmentPool}, in which
+ * case {@link #release()} returns them to the pool. Input streams obtained before the buffer was released
+ * then fail instead of reading chunks which may already hold the content of another request.
+ *
+ * @author kernel164
+ * @see GOutputStream
+ * @see GMemoryStorageFactory
+ */
+public class GChunkedBuffer extends GStorage {
+
+	/** Default size of a single chunk, in bytes. */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	private final int chunkSize;
+
+	private final boolean direct;
+
+	/** The pool to borrow chunks from, may be <code>null</code>. */
+	private final GSegmentPool pool;
+
+	/** The lease tracking the chunks borrowed from the pool, created with the first chunk. */
+	private GSegmentPool.Lease lease;
+
+	/** The chunks, each positioned after its last written byte. */
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	/** The chunk currently written to, or <code>null</code> if it is full or none was allocated yet. */
+	private ByteBuffer current;
+
+	/** Total number of bytes written. */
+	private long size;
+
+	/** Number of releases, invalidating the input streams obtained before. */
+	private volatile int generation;
+
+	/**
+	 * Create a new heap buffer using the {@link #DEFAULT_CHUNK_SIZE default chunk size}.
+	 */
+	public GChunkedBuffer() {
+		this(DEFAULT_CHUNK_SIZE, false);
+	}
+
+	/**
+	 * Create a new buffer using the given chunk size.
+	 *
+	 * @param chunkSize the size of a single chunk, in bytes.
+	 * @param direct whether to allocate direct (off-heap) chunks instead of heap chunks.
+	 */
+	public GChunkedBuffer(int chunkSize, boolean direct) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		this.direct = direct;
+		this.pool = null;
+	}
+
+	/**
+	 * Create a new buffer borrowing its chunks from the given pool.
+	 *
+	 * @param pool the pool to borrow chunks from.
+	 */
+	public GChunkedBuffer(GSegmentPool pool) {
+		this.chunkSize = pool.getSegmentSize();
+		this.direct = pool.isDirect();
+		this.pool = pool;
+	}
+
+	@Override
+	public void write(int b) {
+		if (current == null) {
+			nextChunk();
+		}
+		current.put((byte) b);
+		size++;
+		if (!current.hasRemaining()) {
+			current = null;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (current == null) {
+				nextChunk();
+			}
+			int count = Math.min(len, current.remaining());
+			current.put(b, off, count);
+			size += count;
+			off += count;
+			len -= count;
+			if (!current.hasRemaining()) {
+				current = null;
+			}
+		}
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Buffer too large for a single array: " + size + " bytes");
+		}
+		byte[] data = new byte[(int) size];
+		int pos = 0;
+		for (ByteBuffer chunk : chunks) {
+			ByteBuffer src = readable(chunk);
+			int count = src.remaining();
+			src.get(data, pos, count);
+			pos += count;
+		}
+		return data;
+	}
+
+	/**
+	 * Decodes the chunks in place: a single heap chunk is decoded from its array, ISO-8859-1 and US-ASCII
+	 * content is mapped byte per char, other charsets are decoded chunk by chunk, carrying sequences split
+	 * across chunks over to the next one. Malformed input is replaced, as {@link String#String(byte[], Charset)}
+	 * does.
+	 */
+	@Override
+	public String toString(Charset charset) {
+		if (size == 0) {
+			return "";
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Buffer too large for a single string: " + size + " bytes");
+		}
+		ByteBuffer first = chunks.get(0);
+		if (chunks.size() == 1 && first.hasArray()) {
+			return new String(first.array(), first.arrayOffset(), first.position(), charset);
+		}
+		String name = charset.name();
+		boolean ascii = "US-ASCII".equals(name);
+		if (ascii || "ISO-8859-1".equals(name)) {
+			char[] chars = new char[(int) size];
+			int pos = 0;
+			for (ByteBuffer chunk : chunks) {
+				for (int i = 0, count = chunk.position(); i < count; i++) {
+					byte b = chunk.get(i);
+					chars[pos++] = (ascii && b < 0 ? '\uFFFD' : (char) (b & 0xFF));
+				}
+			}
+			return new String(chars);
+		}
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer out = CharBuffer.allocate((int) (size * decoder.maxCharsPerByte()) + 1);
+		ByteBuffer carry = ByteBuffer.allocate(64);
+		for (ByteBuffer chunk : chunks) {
+			ByteBuffer in = readable(chunk);
+			// complete a sequence split at the end of the previous chunk, one byte at a time
+			while (carry.position() > 0 && in.hasRemaining() && carry.hasRemaining()) {
+				carry.put(in.get());
+				carry.flip();
+				decoder.decode(carry, out, false);
+				carry.compact();
+			}
+			decoder.decode(in, out, false);
+			while (in.hasRemaining() && carry.hasRemaining()) {
+				carry.put(in.get());
+			}
+		}
+		carry.flip();
+		decoder.decode(carry, out, true);
+		decoder.flush(out);
+		out.flip();
+		return out.toString();
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] transfer = null;
+		for (ByteBuffer chunk : chunks) {
+			if (chunk.hasArray()) {
+				out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+			} else {
+				if (transfer == null) {
+					transfer = new byte[Math.min(chunkSize, DEFAULT_CHUNK_SIZE)];
+				}
+				ByteBuffer src = readable(chunk);
+				while (src.hasRemaining()) {
+					int count = Math.min(transfer.length, src.remaining());
+					src.get(transfer, 0, count);
+					out.write(transfer, 0, count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the chunks to the given file with gathering writes, without copying them into a contiguous array.
+	 */
+	@Override
+	public void transferTo(File dest) throws IOException {
+		FileOutputStream out = new FileOutputStream(dest);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer[] readable = getReadableChunks();
+			long remaining = size;
+			while (remaining > 0) {
+				remaining -= channel.write(readable);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns an input stream reading the data written so far directly from the chunks, without copying it.
+	 * Data written after this call is not visible to the returned stream, and reading it after the buffer
+	 * has been released throws an IOException.
+	 *
+	 * @return an input stream over the buffered data.
+	 */
+	@Override
+	public InputStream getInputStream() {
+		final int readable = generation;
+		return new GByteBufferInputStream(getReadableChunks()) {
+
+			@Override
+			protected void checkReadable() throws IOException {
+				if (generation != readable) {
+					throw new IOException("Buffer has been released: its content is no longer available");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns read-only views over the data written to each chunk so far.
+	 *
+	 * @return the readable chunks, in order.
+	 */
+	public ByteBuffer[] getReadableChunks() {
+		ByteBuffer[] readable = new ByteBuffer[chunks.size()];
+		for (int i = 0; i < readable.length; i++) {
+			readable[i] = readable(chunks.get(i));
+		}
+		return readable;
+	}
+
+	@Override
+	public boolean isInMemory() {
+		return true;
+	}
+
+	@Override
+	public String getDescription() {
+		return (direct ? "in direct memory" : "in memory");
+	}
+
+	/**
+	 * Returns the number of chunks allocated or borrowed so far.
+	 */
+	@Override
+	public int getGrowthCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * Drops the chunks, returning them to the pool if they were borrowed.
+	 */
+	@Override
+	public void release() {
+		generation++;
+		if (lease != null) {
+			for (ByteBuffer chunk : chunks) {
+				pool.release(chunk);
+			}
+			lease.close();
+			lease = null;
+		}
+		chunks.clear();
+		current = null;
+		size = 0;
+	}
+
+	private void nextChunk() {
+		if (pool != null) {
+			if (lease == null) {
+				lease = pool.lease(this);
+			}
+			current = pool.acquire(lease);
+		} else {
+			current = (direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize));
+		}
+		chunks.add(current);
+	}
+
+	/**
+	 * Returns a read-only view over the written part of the given chunk.
+	 */
+	private static ByteBuffer readable(ByteBuffer chunk) {
+		ByteBuffer src = chunk.asReadOnlyBuffer();
+		src.flip();
+		return src;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>{@link GMetricsListener} accumulating the measurements into counters and {@link GHistogram}s, to be
+ * scraped by a monitoring system, e.g. through JMX or a metrics endpoint.
+ *
+ * <p>Times are recorded in nanoseconds and sizes in bytes. All the counters are cumulative since the creation of
+ * the listener.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setMetricsListener
+ */
+public class GCountingMetricsListener implements GMetricsListener {
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final AtomicLong partCount = new AtomicLong();
+
+	private final AtomicLong byteCount = new AtomicLong();
+
+	private final AtomicLong spillCount = new AtomicLong();
+
+	private final AtomicLong growthCount = new AtomicLong();
+
+	private final AtomicLong sizeLimitExceededCount = new AtomicLong();
+
+	private final AtomicLong partLimitExceededCount = new AtomicLong();
+
+	private final GHistogram parseTime = new GHistogram();
+
+	private final GHistogram partsPerRequest = new GHistogram();
+
+	private final GHistogram partSize = new GHistogram();
+
+	private final GHistogram firstByteTime = new GHistogram();
+
+	private final GHistogram writeTime = new GHistogram();
+
+	private final GHistogram headerSize = new GHistogram();
+
+	public void partWritten(long bytes, long firstByteNanos, long writeNanos, int growthCount, boolean spilled) {
+		this.partCount.incrementAndGet();
+		this.byteCount.addAndGet(bytes);
+		this.growthCount.addAndGet(growthCount);
+		if (spilled) {
+			this.spillCount.incrementAndGet();
+		}
+		this.partSize.record(bytes);
+		this.firstByteTime.record(firstByteNanos);
+		this.writeTime.record(writeNanos);
+	}
+
+	public void requestParsed(int partCount, long bytes, long parseNanos) {
+		this.requestCount.incrementAndGet();
+		this.partsPerRequest.record(partCount);
+		this.parseTime.record(parseNanos);
+	}
+
+	public void sizeLimitExceeded(long limit) {
+		this.sizeLimitExceededCount.incrementAndGet();
+	}
+
+	public void headersRead(int bytes) {
+		this.headerSize.record(bytes);
+	}
+
+	public void partLimitExceeded(String limitName, long limit) {
+		this.partLimitExceededCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of requests parsed successfully.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Returns the number of parts written.
+	 */
+	public long getPartCount() {
+		return partCount.get();
+	}
+
+	/**
+	 * Returns the number of bytes written to parts.
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * Returns the number of parts moved from memory to the spill storage.
+	 */
+	public long getSpillCount() {
+		return spillCount.get();
+	}
+
+	/**
+	 * Returns the number of times the memory of a part grew.
+	 */
+	public long getGrowthCount() {
+		return growthCount.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected for exceeding the maximum upload size.
+	 */
+	public long getSizeLimitExceededCount() {
+		return sizeLimitExceededCount.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected for having too many parts or header bytes.
+	 */
+	public long getPartLimitExceededCount() {
+		return partLimitExceededCount.get();
+	}
+
+	/**
+	 * Returns the histogram of request parse times, in nanoseconds.
+	 */
+	public GHistogram getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * Returns the histogram of part counts per request.
+	 */
+	public GHistogram getPartsPerRequest() {
+		return partsPerRequest;
+	}
+
+	/**
+	 * Returns the histogram of part sizes, in bytes.
+	 */
+	public GHistogram getPartSize() {
+		return partSize;
+	}
+
+	/**
+	 * Returns the histogram of times from the creation of a part to its first byte, in nanoseconds.
+	 */
+	public GHistogram getFirstByteTime() {
+		return firstByteTime;
+	}
+
+	/**
+	 * Returns the histogram of times from the creation of a part to its last byte, in nanoseconds.
+	 */
+	public GHistogram getWriteTime() {
+		return writeTime;
+	}
+
+	/**
+	 * Returns the histogram of part header sizes, in bytes.
+	 */
+	public GHistogram getHeaderSize() {
+		return headerSize;
+	}
+}
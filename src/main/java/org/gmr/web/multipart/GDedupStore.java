@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p>Content addressed store sharing the content of identical uploads, e.g. the same logo or template sent
+ * again and again, across items and requests.
+ *
+ * <p>Once an item has been fully written, its content is looked up by its digest and size. If the store already
+ * holds the same content, the item releases its own storage and shares the stored one instead; otherwise the
+ * item's storage is added to the store. Shared storages are reference counted: the content is released once
+ * all the items sharing it are deleted and the store has evicted it.
+ *
+ * <p>The store keeps the content of up to {@link #setMaxBytes maxBytes} bytes of distinct uploads, evicting the
+ * least recently shared first. Uploads larger than that are never shared. The memory held by the store is not
+ * charged to the {@link GMemoryBudget} once the items are deleted.
+ *
+ * <p>Contents are matched by digest only, so the algorithm must be collision resistant, SHA-256 by default.
+ * Shared contents are read only: {@link GFileItem#write(java.io.File)} copies them instead of moving them.
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setDedupStore
+ */
+public class GDedupStore {
+
+	/** The default maximum size of the stored contents, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+	/** The collision resistant algorithms accepted to identify contents. */
+	private static final Set<String> ALGORITHMS = new HashSet<String>(Arrays.asList("SHA-256", "SHA-384", "SHA-512",
+			"SHA-512/256", "SHA3-256", "SHA3-384", "SHA3-512"));
+
+	private String algorithm = "SHA-256";
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	/** Stored entries by digest and size, in access order. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long bytes;
+
+	private long hitCount;
+
+	private long missCount;
+
+	private long evictionCount;
+
+	private long savedBytes;
+
+	/**
+	 * Sets the algorithm of the digest identifying contents. The default is SHA-256. As contents are matched by
+	 * digest only, checksums and broken digests such as CRC32 or MD5 are rejected: anyone could craft an upload
+	 * matching the stored content of another one.
+	 *
+	 * @param algorithm the digest algorithm: SHA-256, SHA-384, SHA-512, SHA-512/256, SHA3-256, SHA3-384 or
+	 * SHA3-512.
+	 * @throws IllegalArgumentException if the algorithm is not collision resistant or not supported.
+	 */
+	public void setAlgorithm(String algorithm) {
+		if (algorithm == null || !ALGORITHMS.contains(algorithm.toUpperCase(Locale.ENGLISH))) {
+			throw new IllegalArgumentException("Digest algorithm " + algorithm + " is not collision resistant: use "
+					+ "SHA-256 or stronger");
+		}
+		new GDigester(algorithm);
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * Returns the algorithm of the digest identifying contents.
+	 *
+	 * @return the digest algorithm.
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Sets the maximum total size of the contents kept by the store. The default is {@value #DEFAULT_MAX_BYTES}
+	 * bytes.
+	 *
+	 * @param maxBytes the maximum size, in bytes.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * Returns the maximum total size of the contents kept by the store.
+	 *
+	 * @return the maximum size, in bytes.
+	 */
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Shares the given fully written storage, or the stored storage with the same content.
+	 *
+	 * @param digest the digest of the content, computed with the algorithm of this store.
+	 * @param storage the storage holding the content, released if the store already holds the same content.
+	 * @return the shared storage to use instead of the given one, or the given storage if it is not shared.
+	 */
+	public GStorage share(byte[] digest, GStorage storage) {
+		long size = storage.getSize();
+		if (digest == null || size == 0 || !storage.isAvailable()) {
+			return storage;
+		}
+		String key = toKey(digest, size);
+		Entry entry;
+		synchronized (this) {
+			if (size > maxBytes) {
+				return storage;
+			}
+			entry = entries.get(key);
+			if (entry != null) {
+				entry.references++;
+				hitCount++;
+				savedBytes += size;
+			} else {
+				// one reference for the item, one for the store
+				entry = new Entry(key, storage);
+				entry.references = 2;
+				entries.put(key, entry);
+				bytes += size;
+				missCount++;
+				evict();
+			}
+		}
+		if (entry.storage != storage) {
+			storage.release();
+		}
+		return new SharedStorage(entry);
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			bytes -= entry.storage.getSize();
+			evictionCount++;
+			dereference(entry);
+		}
+	}
+
+	/**
+	 * Evicts all the stored contents. Contents still shared by items are released once they are deleted.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			dereference(entry);
+		}
+		entries.clear();
+		bytes = 0;
+	}
+
+	private synchronized void dereference(Entry entry) {
+		if (--entry.references == 0) {
+			entry.storage.release();
+		}
+	}
+
+	private static String toKey(byte[] digest, long size) {
+		StringBuilder key = new StringBuilder(digest.length * 2 + 12);
+		for (byte b : digest) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.append(':').append(size).toString();
+	}
+
+	/**
+	 * Returns the number of distinct contents kept by the store.
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the total size of the contents kept by the store, in bytes.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of uploads which shared a stored content.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of uploads whose content was added to the store.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of contents evicted from the store.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of bytes which uploads did not have to keep, sharing a stored content instead.
+	 */
+	public synchronized long getSavedBytes() {
+		return savedBytes;
+	}
+
+	private static final class Entry {
+
+		private final String key;
+
+		private final GStorage storage;
+
+		private int references;
+
+		private Entry(String key, GStorage storage) {
+			this.key = key;
+			this.storage = storage;
+		}
+	}
+
+	/**
+	 * Read only view of a stored storage, held by a single item.
+	 */
+	final class SharedStorage extends GStorage {
+
+		private final Entry entry;
+
+		private boolean released;
+
+		private SharedStorage(Entry entry) {
+			this.entry = entry;
+		}
+
+		/**
+		 * Returns whether this view shares the given storage, i.e. whether it was added to the store.
+		 */
+		boolean shares(GStorage storage) {
+			return entry.storage == storage;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			throw new IOException("Shared content is read only");
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			throw new IOException("Shared content is read only");
+		}
+
+		@Override
+		public long getSize() {
+			return entry.storage.getSize();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return entry.storage.getInputStream();
+		}
+
+		@Override
+		public byte[] toByteArray() throws IOException {
+			return entry.storage.toByteArray();
+		}
+
+		@Override
+		public String toString(Charset charset) throws IOException {
+			return entry.storage.toString(charset);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			entry.storage.writeTo(out);
+		}
+
+		@Override
+		public boolean isInMemory() {
+			return entry.storage.isInMemory();
+		}
+
+		@Override
+		public String getDescription() {
+			return "shared " + entry.storage.getDescription() + " [" + entry.key + "]";
+		}
+
+		@Override
+		public void release() {
+			synchronized (GDedupStore.this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			dereference(entry);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.lang.reflect.InvocationTargetException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * <p>Computes digests of data as it is written, so that they are ready once the data is complete without
+ * reading it again.
+ *
+ * <p>Supports the {@link MessageDigest} algorithms of the JVM, e.g. <code>SHA-256</code> or <code>MD5</code>,
+ * and the checksums <code>CRC32</code>, <code>Adler32</code> and, on Java 9 and later, <code>CRC32C</code>.
+ * Checksums are returned as 4 bytes, big-endian.
+ *
+ * <p>Not thread safe: a digester belongs to a single {@link GOutputStream}.
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setDigestAlgorithms
+ */
+public class GDigester {
+
+	private final String[] algorithms;
+
+	private final MessageDigest[] messageDigests;
+
+	private final Checksum[] checksums;
+
+	private Map<String, byte[]> digests;
+
+	/**
+	 * Create a new digester for the given algorithms.
+	 *
+	 * @param algorithms the names of the algorithms.
+	 * @throws IllegalArgumentException if an algorithm is not supported.
+	 */
+	public GDigester(String... algorithms) {
+		this.algorithms = algorithms.clone();
+		this.messageDigests = new MessageDigest[algorithms.length];
+		this.checksums = new Checksum[algorithms.length];
+		for (int i = 0; i < algorithms.length; i++) {
+			checksums[i] = createChecksum(algorithms[i]);
+			if (checksums[i] == null) {
+				try {
+					messageDigests[i] = MessageDigest.getInstance(algorithms[i]);
+				} catch (NoSuchAlgorithmException ex) {
+					throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithms[i], ex);
+				}
+			}
+		}
+	}
+
+	private static Checksum createChecksum(String algorithm) {
+		if ("CRC32".equalsIgnoreCase(algorithm)) {
+			return new CRC32();
+		} else if ("Adler32".equalsIgnoreCase(algorithm)) {
+			return new Adler32();
+		} else if ("CRC32C".equalsIgnoreCase(algorithm)) {
+			try {
+				return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+			} catch (ClassNotFoundException ex) {
+				throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm + " requires Java 9", ex);
+			} catch (NoSuchMethodException ex) {
+				throw new IllegalStateException("Could not create " + algorithm + " checksum", ex);
+			} catch (InstantiationException ex) {
+				throw new IllegalStateException("Could not create " + algorithm + " checksum", ex);
+			} catch (IllegalAccessException ex) {
+				throw new IllegalStateException("Could not create " + algorithm + " checksum", ex);
+			} catch (InvocationTargetException ex) {
+				throw new IllegalStateException("Could not create " + algorithm + " checksum", ex.getCause());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Updates the digests with the given byte.
+	 *
+	 * @param b the byte.
+	 */
+	public void update(int b) {
+		if (digests != null) {
+			return;
+		}
+		for (int i = 0; i < algorithms.length; i++) {
+			if (checksums[i] != null) {
+				checksums[i].update(b);
+			} else {
+				messageDigests[i].update((byte) b);
+			}
+		}
+	}
+
+	/**
+	 * Updates the digests with the given bytes.
+	 *
+	 * @param b the bytes.
+	 * @param off the start offset of the bytes.
+	 * @param len the number of bytes.
+	 */
+	public void update(byte[] b, int off, int len) {
+		if (digests != null) {
+			return;
+		}
+		for (int i = 0; i < algorithms.length; i++) {
+			if (checksums[i] != null) {
+				checksums[i].update(b, off, len);
+			} else {
+				messageDigests[i].update(b, off, len);
+			}
+		}
+	}
+
+	/**
+	 * Completes the digests. Further updates are ignored.
+	 *
+	 * @return the digests, by algorithm name as given.
+	 */
+	public Map<String, byte[]> finish() {
+		if (digests == null) {
+			Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+			for (int i = 0; i < algorithms.length; i++) {
+				if (checksums[i] != null) {
+					long value = checksums[i].getValue();
+					result.put(algorithms[i], new byte[] {
+							(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+				} else {
+					result.put(algorithms[i], messageDigests[i].digest());
+				}
+			}
+			digests = Collections.unmodifiableMap(result);
+		}
+		return digests;
+	}
+
+	/**
+	 * Returns whether the digests have been completed.
+	 *
+	 * @return <code>true</code> after {@link #finish()}.
+	 */
+	public boolean isFinished() {
+		return digests != null;
+	}
+}
@@ -24,7 +24,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemHeaders;
@@ -36,7 +38,7 @@ import org.apache.commons.fileupload.ParameterParser;
  * <p>Important Note: This src is modifed version of {@link org.apache.commons.fileupload.disk.DiskFileItem}
  * to make it work under GAE using Spring.
  *
- * <p> All the File related codes are removed. For more info please check {@link org.apache.commons.fileupload.disk.DiskFileItem}
+ * <p> The content is held in a {@link GStorage} instead of a file. For more info please check {@link org.apache.commons.fileupload.disk.DiskFileItem}
  *
  * <p>The class is an implementation of the {@link org.apache.commons.fileupload.FileItem FileItem} interface.
  *
@@ -90,11 +92,28 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 */
 	private int sizeThreshold;
 
+	/**
+	 * The factory which created this item and configures its output stream, or <code>null</code> for the default in memory storage.
+	 */
+	private transient GFileItemFactory factory;
+
 	/**
 	 * The file items headers.
 	 */
 	private FileItemHeaders headers;
 
+	/**
+	 * The charset parsed from the content type, once {@link #charSetParsed}.
+	 */
+	private String charSet;
+
+	private boolean charSetParsed;
+
+	/**
+	 * The processing of the content by the part processors of the factory, may be <code>null</code>.
+	 */
+	private transient GPartProcessing processing;
+
 	// ----------------------------------------------------------- Constructors
 
 	/**
@@ -104,7 +123,7 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 * @param contentType The content type passed by the browser or <code>null</code> if not specified.
 	 * @param isFormField Whether or not this item is a plain form field, as opposed to a file upload.
 	 * @param fileName The original filename in the user's filesystem, or <code>null</code> if not specified.
-	 * @param sizeThreshold The threshold, in bytes, below which items will be retained in memory. (sizeThresold will always be equal to file upload limit)
+	 * @param sizeThreshold The threshold, in bytes, below which items will be retained in memory. The content is always kept in memory.
 	 */
 	public GFileItem(String fieldName, String contentType, boolean isFormField, String fileName, int sizeThreshold) {
 		this.fieldName = fieldName;
@@ -114,6 +133,22 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 		this.sizeThreshold = sizeThreshold;
 	}
 
+	/**
+	 * Constructs a new <code>GFileItem</code> instance, storing its content as configured by the given factory.
+	 *
+	 * @param fieldName The name of the form field.
+	 * @param contentType The content type passed by the browser or <code>null</code> if not specified.
+	 * @param isFormField Whether or not this item is a plain form field, as opposed to a file upload.
+	 * @param fileName The original filename in the user's filesystem, or <code>null</code> if not specified.
+	 * @param factory The factory creating this item.
+	 *
+	 * @see GFileItemFactory#createOutputStream(GFileItem)
+	 */
+	public GFileItem(String fieldName, String contentType, boolean isFormField, String fileName, GFileItemFactory factory) {
+		this(fieldName, contentType, isFormField, fileName, factory.getSizeThreshold());
+		this.factory = factory;
+	}
+
 	// ------------------------------- Methods from javax.activation.DataSource
 
 	/**
@@ -124,10 +159,12 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 * @throws IOException if an error occurs.
 	 */
 	public InputStream getInputStream() throws IOException {
-		if (cachedContent == null) {
-			cachedContent = dfos.getData();
+		if (cachedContent != null) {
+			return new ByteArrayInputStream(cachedContent);
+		} else if (dfos == null) {
+			return new ByteArrayInputStream(new byte[0]);
 		}
-		return new ByteArrayInputStream(cachedContent);
+		return dfos.getInputStream();
 	}
 
 	/**
@@ -146,11 +183,16 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 */
 	@SuppressWarnings("unchecked")
 	public String getCharSet() {
-		ParameterParser parser = new ParameterParser();
-		parser.setLowerCaseNames(true);
-		// Parameter parser can handle null input
-		Map<String, String> params = parser.parse(getContentType(), ';');
-		return params.get("charset");
+		if (!charSetParsed) {
+			if (contentType != null && contentType.indexOf(';') >= 0) {
+				ParameterParser parser = new ParameterParser();
+				parser.setLowerCaseNames(true);
+				Map<String, String> params = parser.parse(contentType, ';');
+				charSet = params.get("charset");
+			}
+			charSetParsed = true;
+		}
+		return charSet;
 	}
 
 	/**
@@ -170,37 +212,63 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 * @return <code>true</code> if the file contents will be read from memory; <code>false</code> otherwise.
 	 */
 	public boolean isInMemory() {
-		return true;
+		if (cachedContent != null || dfos == null) {
+			return true;
+		}
+		return dfos.isInMemory();
 	}
 
 	/**
-	 * Returns the size of the file.
+	 * Returns a description for the storage location of the file contents, e.g. "in memory".
+	 *
+	 * @return The storage description.
+	 */
+	public String getStorageDescription() {
+		if (dfos == null) {
+			return "in memory";
+		}
+		return dfos.getStorage().getDescription();
+	}
+
+	/**
+	 * Returns the size of the file. The size is tracked while the data is written, so this neither copies nor
+	 * allocates.
 	 *
 	 * @return The size of the file, in bytes.
 	 */
 	public long getSize() {
 		if (cachedContent != null) {
 			return cachedContent.length;
+		} else if (dfos != null) {
+			return dfos.getByteCount();
 		} else {
-			return dfos.getData().length;
+			return 0;
 		}
 	}
 
 	/**
-	 * Returns the contents of the file as an array of bytes.
+	 * Returns the contents of the file as an array of bytes. The contiguous array is built on the first call
+	 * and cached afterwards.
 	 *
-	 * @return The contents of the file as an array of bytes.
+	 * @return The contents of the file as an array of bytes, or <code>null</code> if the data could not be read.
 	 */
 	public byte[] get() {
 		if (cachedContent == null) {
-			cachedContent = dfos.getData();
+			if (dfos == null) {
+				return new byte[0];
+			}
+			try {
+				cachedContent = dfos.getData();
+			} catch (IOException e) {
+				return null;
+			}
 		}
 		return cachedContent;
 	}
 
 	/**
-	 * Returns the contents of the file as a String, using the specified encoding. This method uses {@link #get()} to
-	 * retrieve the contents of the file.
+	 * Returns the contents of the file as a String, using the specified encoding. This method uses
+	 * {@link #getString(Charset)} to decode the contents of the file.
 	 *
 	 * @param charset The charset to use.
 	 *
@@ -209,44 +277,148 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 * @throws UnsupportedEncodingException if the requested character encoding is not available.
 	 */
 	public String getString(final String charset) throws UnsupportedEncodingException {
-		return new String(get(), charset);
+		if (cachedContent != null) {
+			return new String(cachedContent, charset);
+		}
+		try {
+			return getString(Charset.forName(charset));
+		} catch (IllegalArgumentException e) {
+			throw new UnsupportedEncodingException(charset);
+		}
 	}
 
 	/**
-	 * Returns the contents of the file as a String, using the default character encoding. This method uses
-	 * {@link #get()} to retrieve the contents of the file.
+	 * Returns the contents of the file as a String, decoded with the specified charset straight from the storage
+	 * holding it, without building the contiguous array returned by {@link #get()} first.
+	 *
+	 * @param charset The charset to use.
+	 *
+	 * @return The contents of the file, as a string, or <code>null</code> if the data could not be read.
+	 */
+	public String getString(final Charset charset) {
+		if (cachedContent != null) {
+			return new String(cachedContent, charset);
+		} else if (dfos == null) {
+			return "";
+		}
+		try {
+			return dfos.getStorage().toString(charset);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the contents of the file as a String, using the charset of its content type, or the default
+	 * character encoding. This method uses {@link #getString(Charset)} to decode the contents of the file.
 	 *
 	 * @return The contents of the file, as a string.
 	 *
 	 * @todo Consider making this method throw UnsupportedEncodingException.
 	 */
 	public String getString() {
-		byte[] rawdata = get();
 		String charset = getCharSet();
 		if (charset == null) {
 			charset = DEFAULT_CHARSET;
 		}
 		try {
-			return new String(rawdata, charset);
+			return getString(charset);
 		} catch (UnsupportedEncodingException e) {
-			return new String(rawdata);
+			return getString(Charset.defaultCharset());
 		}
 	}
 
 	/**
-	 * This method is not supported.
+	 * A convenience method to write an uploaded item to disk. The content is written straight from the storage
+	 * holding it, without an intermediate copy on the heap: buffered content is written with gathering writes,
+	 * content held in a temporary file is moved or copied with channel transfers.
+	 *
+	 * <p>This method is not guaranteed to succeed if called more than once for the same item, as the content
+	 * may have been moved.
 	 *
 	 * @param file The <code>File</code> into which the uploaded item should be stored.
+	 *
+	 * @throws IOException if an error occurs.
 	 */
-	public void write(File file) {
-		throw new UnsupportedOperationException("Not possible in GAE.");
+	public void write(File file) throws IOException {
+		if (dfos == null) {
+			getOutputStream().close();
+		}
+		if (processing != null) {
+			// the content may be moved
+			processing.join();
+		}
+		dfos.transferTo(file);
 	}
 
 	/**
-	 * Does nothing.
+	 * Determines whether the content is still available, i.e. has not been moved by {@link #write(File)}.
+	 *
+	 * @return <code>true</code> if the content is available.
+	 */
+	public boolean isAvailable() {
+		return (cachedContent != null || dfos == null || dfos.getStorage().isAvailable());
+	}
+
+	/**
+	 * Releases the storage holding the contents, deleting its temporary file if any, returning pooled
+	 * segments and giving its memory back to the memory budget. The cached contents and the output stream
+	 * are dropped, so the item is empty afterwards.
 	 */
 	public void delete() {
-		// As all the data are in Heap, it will be garbage collected.
+		if (processing != null) {
+			processing.cancel();
+		}
+		cachedContent = null;
+		if (dfos != null) {
+			dfos.release();
+			dfos = null;
+		}
+	}
+
+	/**
+	 * Returns the digest of the content computed with the given algorithm as it was written.
+	 *
+	 * @param algorithm The name of the algorithm, as configured on the factory.
+	 *
+	 * @return The digest, or <code>null</code> if not computed, not fully written yet, or the item was deleted.
+	 *
+	 * @see GFileItemFactory#setDigestAlgorithms
+	 */
+	public byte[] getDigest(String algorithm) {
+		return (dfos != null ? dfos.getDigest(algorithm) : null);
+	}
+
+	/**
+	 * Returns the result of the sink the content was forwarded to.
+	 *
+	 * @return The result, or <code>null</code> if the content was not forwarded to a sink, not fully written yet,
+	 * or the item was deleted.
+	 *
+	 * @see GFileItemFactory#setPartSinks
+	 */
+	public Object getSinkResult() {
+		GStorage storage = (dfos != null ? dfos.getStorage() : null);
+		return (storage instanceof GSinkStorage ? ((GSinkStorage) storage).getResult() : null);
+	}
+
+	/**
+	 * Returns the processing of the content by the part processors of the factory.
+	 *
+	 * @return The processing, or <code>null</code> if the item has not been processed.
+	 *
+	 * @see GFileItemFactory#setPartProcessors
+	 */
+	public GPartProcessing getProcessing() {
+		return processing;
+	}
+
+	/**
+	 * Starts the processing of the content by the given part processors, once it has been fully written.
+	 */
+	void startProcessing(Map<String, GPartProcessor> processors, Executor executor) {
+		processing = new GPartProcessing(this, processors);
+		processing.start(executor);
 	}
 
 	/**
@@ -308,7 +480,12 @@ public class GFileItem implements FileItem, FileItemHeadersSupport {
 	 */
 	public OutputStream getOutputStream() throws IOException {
 		if (dfos == null) {
-			dfos = new GOutputStream(sizeThreshold);
+			if (factory != null) {
+				dfos = factory.createOutputStream(this);
+			} else {
+				// without a factory, e.g. once deserialized, there is no spill storage: keep the content in memory
+				dfos = new GOutputStream(Integer.MAX_VALUE);
+			}
 		}
 		return dfos;
 	}
@@ -16,6 +16,14 @@
  */
 package org.gmr.web.multipart;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
 
@@ -25,13 +33,54 @@ import org.apache.commons.fileupload.FileItemFactory;
  * The class is an implementation of the {@link org.apache.commons.fileupload.FileItemFactory} interface.
  *
  * <p>
- * maxInMemorySize is set to Integer.MAX_VALUE by default.
+ * The content of the created items is held in storages created by the configured {@link GStorageFactory},
+ * chunked heap memory by default. Items growing past the size threshold ({@value #DEFAULT_SIZE_THRESHOLD} bytes
+ * by default) are transparently moved to a storage created by the spill storage factory, temporary files by default.
  *
  * @author kernel164
  */
 public class GFileItemFactory implements FileItemFactory {
-	/** Thresold file size in Memory is set to max file upload size (default is max integer value). */
-	private int sizeThreshold = Integer.MAX_VALUE;
+	/** The default threshold above which uploads will be moved out of memory. */
+	public static final int DEFAULT_SIZE_THRESHOLD = 10240;
+
+	/** Thresold file size in Memory. */
+	private int sizeThreshold = DEFAULT_SIZE_THRESHOLD;
+
+	/** Factory for the storages holding the content of the items. */
+	private GStorageFactory storageFactory = new GMemoryStorageFactory();
+
+	/** Factory for the storages taking over the content of items growing past the threshold. */
+	private GStorageFactory spillStorageFactory = new GFileStorageFactory();
+
+	/** Budget shared by all items for the content they hold in memory, may be null. */
+	private GMemoryBudget memoryBudget;
+
+	/** Listener notified when the content of an item has been written. */
+	private GMetricsListener metricsListener = GMetricsListener.NONE;
+
+	/** Maximum size of each item, -1 for no limit. */
+	private long maxFileSize = -1;
+
+	/** Maximum sizes of the items by field name. */
+	private Map<String, Long> fieldSizeLimits = Collections.emptyMap();
+
+	/** Maximum sizes of the items by lower case content type, possibly with a <code>*</code> subtype. */
+	private Map<String, Long> contentTypeSizeLimits = Collections.emptyMap();
+
+	/** Algorithms of the digests computed over the content of each file item as it is written. */
+	private String[] digestAlgorithms = new String[0];
+
+	/** Store sharing the content of identical file items, may be null. */
+	private GDedupStore dedupStore;
+
+	/** Processors run on the content of each file item once written, by name. */
+	private Map<String, GPartProcessor> partProcessors = Collections.emptyMap();
+
+	/** Executor running the part processors, may be null. */
+	private Executor partProcessorExecutor;
+
+	/** Sinks receiving the content of the file items instead of a storage, by field name. */
+	private Map<String, GPartSink> partSinks = Collections.emptyMap();
 
 	/**
 	 * Create a new {@link GFileItem} instance from the supplied parameters and the local factory configuration.
@@ -44,12 +93,53 @@ public class GFileItemFactory implements FileItemFactory {
 	 * @return The newly created file item.
 	 */
 	public FileItem createItem(String fieldName, String contentType, boolean isFormField, String fileName) {
-		return new GFileItem(fieldName, contentType, isFormField, fileName, sizeThreshold);
+		return new GFileItem(fieldName, contentType, isFormField, fileName, this);
+	}
+
+	/**
+	 * Create the output stream receiving the content of the given item, forwarding it to the sink of its field if
+	 * any, or else writing to a new storage from the storage factory and spilling to the spill storage factory
+	 * past the size threshold.
+	 *
+	 * @param item The item to create the output stream for.
+	 *
+	 * @return The new output stream.
+	 *
+	 * @throws IOException if the storage could not be created.
+	 */
+	protected GOutputStream createOutputStream(final GFileItem item) throws IOException {
+		GPartSink sink = (item.isFormField() ? null : partSinks.get(item.getFieldName()));
+		GStorage storage = (sink != null ? sink.open(item) : storageFactory.createStorage());
+		GOutputStream out = new GOutputStream(sizeThreshold, storage, spillStorageFactory);
+		out.setMemoryBudget(memoryBudget);
+		long sizeLimit = getSizeLimit(item.getFieldName(), item.getContentType());
+		if (sizeLimit >= 0) {
+			out.setSizeLimit(sizeLimit, item.getFieldName(), item.getName());
+		}
+		if (metricsListener != GMetricsListener.NONE) {
+			out.setMetricsListener(metricsListener);
+		}
+		if (!item.isFormField() && dedupStore != null) {
+			out.setDigester(new GDigester(withAlgorithm(digestAlgorithms, dedupStore.getAlgorithm())));
+			out.setDedupStore(dedupStore);
+		} else if (!item.isFormField() && digestAlgorithms.length > 0) {
+			out.setDigester(new GDigester(digestAlgorithms));
+		}
+		if (!item.isFormField() && sink == null && !partProcessors.isEmpty()) {
+			final Map<String, GPartProcessor> processors = partProcessors;
+			final Executor executor = partProcessorExecutor;
+			out.setCloseAction(new Runnable() {
+				public void run() {
+					item.startProcessing(processors, executor);
+				}
+			});
+		}
+		return out;
 	}
 
 	/**
-	 * Sets the size threshold to store the data in memory, beyond that GFileItem will throw error,
-	 * as file handling is not supported in GAE.
+	 * Sets the size threshold to store the data in memory, beyond that the data of a GFileItem is moved to
+	 * a storage created by the spill storage factory. Independent from the maximum upload size.
 	 *
 	 * @param sizeThreshold The size threshold, in bytes.
 	 *
@@ -60,7 +150,7 @@ public class GFileItemFactory implements FileItemFactory {
 	}
 
 	/**
-	 * Returns the size threshold beyond which files are written directly to disk. The default value is Integer.MAX_VALUE bytes (2 GB approx).
+	 * Returns the size threshold beyond which files are written directly to disk. The default value is {@value #DEFAULT_SIZE_THRESHOLD} bytes.
 	 *
 	 * @return The size threshold, in bytes.
 	 *
@@ -69,4 +159,315 @@ public class GFileItemFactory implements FileItemFactory {
 	public int getSizeThreshold() {
 		return sizeThreshold;
 	}
+
+	/**
+	 * Sets the factory for the storages holding the content of the created items.
+	 * Default is a {@link GMemoryStorageFactory} using heap memory.
+	 *
+	 * @param storageFactory The storage factory.
+	 *
+	 * @see GMemoryStorageFactory
+	 * @see GFileStorageFactory
+	 */
+	public void setStorageFactory(GStorageFactory storageFactory) {
+		if (storageFactory == null) {
+			throw new IllegalArgumentException("storageFactory must not be null");
+		}
+		this.storageFactory = storageFactory;
+	}
+
+	/**
+	 * Returns the factory for the storages holding the content of the created items.
+	 *
+	 * @return The storage factory.
+	 */
+	public GStorageFactory getStorageFactory() {
+		return storageFactory;
+	}
+
+	/**
+	 * Sets the factory for the storages taking over the content of items growing past the size threshold.
+	 * Default is a {@link GFileStorageFactory} using the system default temporary directory.
+	 *
+	 * @param spillStorageFactory The spill storage factory.
+	 */
+	public void setSpillStorageFactory(GStorageFactory spillStorageFactory) {
+		if (spillStorageFactory == null) {
+			throw new IllegalArgumentException("spillStorageFactory must not be null");
+		}
+		this.spillStorageFactory = spillStorageFactory;
+	}
+
+	/**
+	 * Returns the factory for the storages taking over the content of items growing past the size threshold.
+	 *
+	 * @return The spill storage factory.
+	 */
+	public GStorageFactory getSpillStorageFactory() {
+		return spillStorageFactory;
+	}
+
+	/**
+	 * Sets the budget bounding the memory held by all the items of this factory together, across concurrent
+	 * requests. The default is no budget, bounding only each item by the size threshold.
+	 *
+	 * @param memoryBudget The memory budget, or <code>null</code> for no limit.
+	 */
+	public void setMemoryBudget(GMemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns the budget bounding the memory held by all the items of this factory together.
+	 *
+	 * @return The memory budget, or <code>null</code> if there is none.
+	 */
+	public GMemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets the listener notified when the content of an item has been written. The default is
+	 * {@link GMetricsListener#NONE}, measuring nothing.
+	 *
+	 * @param metricsListener The metrics listener.
+	 */
+	public void setMetricsListener(GMetricsListener metricsListener) {
+		this.metricsListener = (metricsListener != null ? metricsListener : GMetricsListener.NONE);
+	}
+
+	/**
+	 * Returns the listener notified when the content of an item has been written.
+	 *
+	 * @return The metrics listener.
+	 */
+	public GMetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+
+	/**
+	 * Sets the algorithms of the digests to compute over the content of each file item, i.e. not of form
+	 * fields, as it is written: the digests are ready once the item is written, without reading its content
+	 * again. They are available from {@link GMultipartFile#getDigest(String)}. The default is no digests.
+	 *
+	 * @param digestAlgorithms The algorithms, e.g. <code>SHA-256</code>, <code>MD5</code> or <code>CRC32C</code>.
+	 *
+	 * @throws IllegalArgumentException if an algorithm is not supported.
+	 *
+	 * @see GDigester
+	 */
+	public void setDigestAlgorithms(String... digestAlgorithms) {
+		String[] algorithms = (digestAlgorithms != null ? digestAlgorithms.clone() : new String[0]);
+		// fail now rather than on the first upload
+		new GDigester(algorithms);
+		this.digestAlgorithms = algorithms;
+	}
+
+	/**
+	 * Returns the algorithms of the digests computed over the content of each file item.
+	 *
+	 * @return The digest algorithms.
+	 */
+	public String[] getDigestAlgorithms() {
+		return digestAlgorithms.clone();
+	}
+
+	/**
+	 * Returns the maximum size of an item of the given field name and content type: the smallest of the maximum
+	 * item size, the limit of the field and the limit of the content type.
+	 *
+	 * @param fieldName The name of the form field.
+	 * @param contentType The content type of the item, or <code>null</code> if not specified.
+	 *
+	 * @return The size limit, in bytes, or -1 for no limit.
+	 */
+	public long getSizeLimit(String fieldName, String contentType) {
+		long limit = maxFileSize;
+		if (fieldName != null && !fieldSizeLimits.isEmpty()) {
+			limit = min(limit, fieldSizeLimits.get(fieldName));
+		}
+		if (contentType != null && !contentTypeSizeLimits.isEmpty()) {
+			int semicolon = contentType.indexOf(';');
+			String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+			Long typeLimit = contentTypeSizeLimits.get(type);
+			int slash = type.indexOf('/');
+			if (typeLimit == null && slash > 0) {
+				typeLimit = contentTypeSizeLimits.get(type.substring(0, slash) + "/*");
+			}
+			limit = min(limit, typeLimit);
+		}
+		return limit;
+	}
+
+	private static long min(long limit, Long other) {
+		if (other == null || other < 0) {
+			return limit;
+		}
+		return (limit < 0 ? other : Math.min(limit, other));
+	}
+
+	/**
+	 * Sets the maximum size of each item, checked as its content is written. The default is no limit.
+	 *
+	 * @param maxFileSize The maximum size, in bytes, or -1 for no limit.
+	 */
+	public void setMaxFileSize(long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * Returns the maximum size of each item.
+	 *
+	 * @return The maximum size, in bytes, or -1 for no limit.
+	 */
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	/**
+	 * Sets the maximum sizes of the items of the given field names, checked as their content is written.
+	 *
+	 * @param fieldSizeLimits The maximum sizes in bytes, by field name.
+	 */
+	public void setFieldSizeLimits(Map<String, Long> fieldSizeLimits) {
+		this.fieldSizeLimits = (fieldSizeLimits != null ?
+				Collections.unmodifiableMap(new HashMap<String, Long>(fieldSizeLimits)) :
+				Collections.<String, Long>emptyMap());
+	}
+
+	/**
+	 * Returns the maximum sizes of the items of the given field names.
+	 *
+	 * @return The maximum sizes in bytes, by field name.
+	 */
+	public Map<String, Long> getFieldSizeLimits() {
+		return fieldSizeLimits;
+	}
+
+	/**
+	 * Sets the maximum sizes of the items of the given content types, checked as their content is written.
+	 * Content types are matched ignoring case and parameters; a type such as <code>image/*</code> matches all
+	 * the subtypes without a limit of their own.
+	 *
+	 * @param contentTypeSizeLimits The maximum sizes in bytes, by content type.
+	 */
+	public void setContentTypeSizeLimits(Map<String, Long> contentTypeSizeLimits) {
+		Map<String, Long> limits = new HashMap<String, Long>();
+		if (contentTypeSizeLimits != null) {
+			for (Map.Entry<String, Long> entry : contentTypeSizeLimits.entrySet()) {
+				limits.put(entry.getKey().trim().toLowerCase(), entry.getValue());
+			}
+		}
+		this.contentTypeSizeLimits = Collections.unmodifiableMap(limits);
+	}
+
+	/**
+	 * Returns the maximum sizes of the items of the given content types.
+	 *
+	 * @return The maximum sizes in bytes, by lower case content type.
+	 */
+	public Map<String, Long> getContentTypeSizeLimits() {
+		return contentTypeSizeLimits;
+	}
+
+	private static String[] withAlgorithm(String[] algorithms, String algorithm) {
+		for (String a : algorithms) {
+			if (a.equals(algorithm)) {
+				return algorithms;
+			}
+		}
+		String[] result = Arrays.copyOf(algorithms, algorithms.length + 1);
+		result[algorithms.length] = algorithm;
+		return result;
+	}
+
+	/**
+	 * Sets the store sharing the content of identical file items, across requests: an item whose content is
+	 * already stored releases its own storage once written. The default is none, each item keeping its own
+	 * content.
+	 *
+	 * @param dedupStore The dedup store, or <code>null</code> for none.
+	 *
+	 * @see GDedupStore
+	 */
+	public void setDedupStore(GDedupStore dedupStore) {
+		this.dedupStore = dedupStore;
+	}
+
+	/**
+	 * Returns the store sharing the content of identical file items.
+	 *
+	 * @return The dedup store, or <code>null</code> if there is none.
+	 */
+	public GDedupStore getDedupStore() {
+		return dedupStore;
+	}
+
+	/**
+	 * Sets the processors to run on the content of each file item, i.e. not on form fields, once it has been
+	 * fully written. The processors of an item run in the given order, and their results are available by name
+	 * from {@link GMultipartFile#getProcessingResult(String)}. The default is no processors.
+	 *
+	 * @param partProcessors The part processors, by name.
+	 *
+	 * @see #setPartProcessorExecutor(Executor)
+	 */
+	public void setPartProcessors(Map<String, GPartProcessor> partProcessors) {
+		this.partProcessors = (partProcessors != null ?
+				Collections.unmodifiableMap(new LinkedHashMap<String, GPartProcessor>(partProcessors)) :
+				Collections.<String, GPartProcessor>emptyMap());
+	}
+
+	/**
+	 * Returns the processors to run on the content of each file item.
+	 *
+	 * @return The part processors, by name.
+	 */
+	public Map<String, GPartProcessor> getPartProcessors() {
+		return partProcessors;
+	}
+
+	/**
+	 * Sets the executor running the part processors, so that the items are processed while the rest of the
+	 * request is being read. The default is none, processing each item on the request thread once written.
+	 *
+	 * @param partProcessorExecutor The executor, e.g. from {@link GPartProcessing#newExecutor(int)}, or
+	 * <code>null</code> to process on the request thread.
+	 */
+	public void setPartProcessorExecutor(Executor partProcessorExecutor) {
+		this.partProcessorExecutor = partProcessorExecutor;
+	}
+
+	/**
+	 * Returns the executor running the part processors.
+	 *
+	 * @return The executor, or <code>null</code> if items are processed on the request thread.
+	 */
+	public Executor getPartProcessorExecutor() {
+		return partProcessorExecutor;
+	}
+
+	/**
+	 * Sets the sinks receiving the content of the file items of the given field names as it is written, instead
+	 * of a storage of the items. The content of these items cannot be read back, nor shared through the dedup
+	 * store, and the part processors do not run on them. The default is no sinks.
+	 *
+	 * @param partSinks The part sinks, by field name.
+	 *
+	 * @see GPartSink
+	 */
+	public void setPartSinks(Map<String, GPartSink> partSinks) {
+		this.partSinks = (partSinks != null ?
+				Collections.unmodifiableMap(new HashMap<String, GPartSink>(partSinks)) :
+				Collections.<String, GPartSink>emptyMap());
+	}
+
+	/**
+	 * Returns the sinks receiving the content of the file items of the given field names.
+	 *
+	 * @return The part sinks, by field name.
+	 */
+	public Map<String, GPartSink> getPartSinks() {
+		return partSinks;
+	}
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemHeadersSupport;
+
+/**
+ * <p>{@link GMultipartParser.Handler} creating a file item for each part from a FileItemFactory, the same way
+ * commons-fileupload does: parts without a form field name are skipped, and parts without a file name are
+ * form fields.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setNativeParser
+ */
+public class GFileItemPartHandler implements GMultipartParser.Handler {
+
+	private final FileItemFactory fileItemFactory;
+
+	private final List<FileItem> fileItems = new ArrayList<FileItem>();
+
+	private OutputStream out;
+
+	/**
+	 * Create a new handler.
+	 *
+	 * @param fileItemFactory the factory creating the file items.
+	 */
+	public GFileItemPartHandler(FileItemFactory fileItemFactory) {
+		this.fileItemFactory = fileItemFactory;
+	}
+
+	public OutputStream startPart(GPartHeaders headers) throws IOException {
+		String fieldName = headers.getFieldName();
+		if (fieldName == null) {
+			return null;
+		}
+		FileItem fileItem = fileItemFactory.createItem(fieldName, headers.getContentType(), headers.isFormField(),
+				headers.getFileName());
+		fileItems.add(fileItem);
+		if (fileItem instanceof FileItemHeadersSupport) {
+			((FileItemHeadersSupport) fileItem).setHeaders(headers.copy());
+		}
+		out = fileItem.getOutputStream();
+		return out;
+	}
+
+	public void endPart() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Returns the file items created so far, in arrival order.
+	 *
+	 * @return the file items.
+	 */
+	public List<FileItem> getFileItems() {
+		return fileItems;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * <p>{@link GPartSink} writing each uploaded file to a new file of the configured directory, through its file
+ * channel. The result of the sink is the written {@link File}, which is kept when the request is cleaned up.
+ *
+ * <p>The files are named after the configured prefix and a unique suffix, never after the file name sent by the
+ * client. A file is deleted if its upload fails.
+ *
+ * @author kernel164
+ */
+public class GFileSink implements GPartSink {
+
+	private File directory;
+
+	private String prefix = "upload_";
+
+	public GSinkStorage open(FileItem fileItem) throws IOException {
+		final File file = File.createTempFile(prefix, ".bin", directory);
+		return new GSinkStorage(new FileOutputStream(file).getChannel(), file.getPath()) {
+
+			@Override
+			protected Object complete() {
+				return file;
+			}
+
+			@Override
+			protected void discard() {
+				file.delete();
+			}
+		};
+	}
+
+	/**
+	 * Sets the directory to write the files to.
+	 *
+	 * @param directory the directory, or <code>null</code> for the system default temporary directory.
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the directory the files are written to.
+	 *
+	 * @return the directory, or <code>null</code> if the system default temporary directory is used.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the prefix of the names of the files, at least 3 characters long. Default is "upload_".
+	 *
+	 * @param prefix the prefix.
+	 */
+	public void setPrefix(String prefix) {
+		if (prefix == null || prefix.length() < 3) {
+			throw new IllegalArgumentException("prefix must be at least 3 characters long");
+		}
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Returns the prefix of the names of the files.
+	 *
+	 * @return the prefix.
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+}
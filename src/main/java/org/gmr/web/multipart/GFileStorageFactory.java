@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>{@link GStorageFactory} writing the content of file items to temporary files.
+ *
+ * <p>The files are created in the configured repository directory, or in the system default temporary
+ * directory if none is set. Set "memoryMapped" to <code>true</code> to read the content back through memory
+ * mapping ({@link GMappedFileStorage}) instead of file streams ({@link GTempFileStorage}).
+ *
+ * @author kernel164
+ */
+public class GFileStorageFactory implements GStorageFactory {
+
+	private File repository;
+
+	private boolean memoryMapped = false;
+
+	public GStorage createStorage() throws IOException {
+		return (memoryMapped ? new GMappedFileStorage(repository) : new GTempFileStorage(repository));
+	}
+
+	/**
+	 * Sets the directory used to temporarily store the content of file items.
+	 *
+	 * @param repository the directory, or <code>null</code> for the system default temporary directory.
+	 */
+	public void setRepository(File repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Returns the directory used to temporarily store the content of file items.
+	 *
+	 * @return the directory, or <code>null</code> if the system default temporary directory is used.
+	 */
+	public File getRepository() {
+		return repository;
+	}
+
+	/**
+	 * Sets whether to read the stored content back through memory mapping. Default is <code>false</code>.
+	 *
+	 * @param memoryMapped <code>true</code> to use memory mapped files.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Returns whether the stored content is read back through memory mapping.
+	 *
+	 * @return <code>true</code> if memory mapped files are used.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+}
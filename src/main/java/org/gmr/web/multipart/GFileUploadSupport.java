@@ -16,20 +16,32 @@
 
 package org.gmr.web.multipart;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileItemFactory;
+import org.apache.commons.fileupload.FileItemHeadersSupport;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUpload;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.Resource;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
-import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.util.WebUtils;
 
@@ -56,12 +68,27 @@ import org.springframework.web.util.WebUtils;
  */
 public abstract class GFileUploadSupport {
 
+	/** Maximum number of request encodings whose FileUpload instance is cached. */
+	private static final int MAX_CACHED_ENCODINGS = 16;
+
 	protected final Log logger = LogFactory.getLog(getClass());
 
 	private final GFileItemFactory fileItemFactory;
 
 	private final FileUpload fileUpload;
 
+	/** FileUpload instances for request encodings other than the default encoding, keyed by encoding. */
+	private final ConcurrentMap<String, FileUpload> encodingFileUploads = new ConcurrentHashMap<String, FileUpload>();
+
+	/** Charsets of the request encodings, keyed by encoding. */
+	private final ConcurrentMap<String, Charset> charsets = new ConcurrentHashMap<String, Charset>();
+
+	private int maxPartCount = -1;
+
+	private int maxHeaderSize = -1;
+
+	private long maxTotalHeaderSize = -1;
+
 	/**
 	 * Instantiate a new GFileUploadSupport with its corresponding FileItemFactory and FileUpload instances.
 	 *
@@ -95,15 +122,232 @@ public abstract class GFileUploadSupport {
 
 	/**
 	 * Set the maximum allowed size (in bytes) before uploads are refused. -1 indicates no limit (the default).
-	 * Sets the maximum in memory thresold limit to max upload size.
 	 *
 	 * @param maxUploadSize the maximum upload size allowed
 	 * @see org.apache.commons.fileupload.FileUploadBase#setSizeMax
-	 * @see org.apache.commons.fileupload.FileItemFactory#setSizeThreshold
 	 */
 	public void setMaxUploadSize(int maxUploadSize) {
 		this.fileUpload.setSizeMax(maxUploadSize);
-		this.fileItemFactory.setSizeThreshold(maxUploadSize);
+		this.encodingFileUploads.clear();
+	}
+
+	/**
+	 * Set the maximum allowed size (in bytes) of each file or form field of a request. -1 indicates no limit
+	 * (the default). A part exceeding it is refused as soon as it is, without buffering the rest of it.
+	 *
+	 * @param maxUploadSizePerFile the maximum size of each part
+	 * @see org.apache.commons.fileupload.FileUploadBase#setFileSizeMax
+	 * @see GFileItemFactory#setMaxFileSize
+	 */
+	public void setMaxUploadSizePerFile(long maxUploadSizePerFile) {
+		this.fileUpload.setFileSizeMax(maxUploadSizePerFile);
+		this.fileItemFactory.setMaxFileSize(maxUploadSizePerFile);
+		this.encodingFileUploads.clear();
+	}
+
+	/**
+	 * Set the maximum allowed sizes (in bytes) of the files or form fields of the given names. Not enforced in
+	 * streaming mode.
+	 *
+	 * @param maxUploadSizePerField the maximum sizes, by field name
+	 * @see GFileItemFactory#setFieldSizeLimits
+	 */
+	public void setMaxUploadSizePerField(Map<String, Long> maxUploadSizePerField) {
+		this.fileItemFactory.setFieldSizeLimits(maxUploadSizePerField);
+	}
+
+	/**
+	 * Set the maximum allowed sizes (in bytes) of the files of the given content types, such as
+	 * <code>image/png</code> or <code>image/*</code>. Not enforced in streaming mode.
+	 *
+	 * @param maxUploadSizePerContentType the maximum sizes, by content type
+	 * @see GFileItemFactory#setContentTypeSizeLimits
+	 */
+	public void setMaxUploadSizePerContentType(Map<String, Long> maxUploadSizePerContentType) {
+		this.fileItemFactory.setContentTypeSizeLimits(maxUploadSizePerContentType);
+	}
+
+	/**
+	 * Set the maximum number of parts of a request. -1 indicates no limit (the default). A request is refused
+	 * with a {@link GPartLimitExceededException} as soon as it exceeds it. Not enforced in streaming mode.
+	 *
+	 * @param maxPartCount the maximum number of parts
+	 */
+	public void setMaxPartCount(int maxPartCount) {
+		this.maxPartCount = maxPartCount;
+	}
+
+	/**
+	 * Set the maximum size (in bytes) of the headers of a single part. -1 indicates no limit (the default), other
+	 * than the {@value GMultipartParser#HEADER_PART_SIZE_MAX} bytes allowed by the parsers. Through Commons
+	 * FileUpload, which does not expose the raw headers, the size is estimated from the known headers.
+	 *
+	 * @param maxHeaderSize the maximum size of the headers of a part
+	 */
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	/**
+	 * Set the maximum size (in bytes) of the headers of all the parts of a request. -1 indicates no limit (the
+	 * default).
+	 *
+	 * @param maxTotalHeaderSize the maximum size of the headers of a request
+	 */
+	public void setMaxTotalHeaderSize(long maxTotalHeaderSize) {
+		this.maxTotalHeaderSize = maxTotalHeaderSize;
+	}
+
+	/**
+	 * Create the limiter counting the parts and header bytes of a single request.
+	 *
+	 * @return the part limiter
+	 * @see #setMaxPartCount
+	 * @see #setMaxHeaderSize
+	 * @see #setMaxTotalHeaderSize
+	 */
+	protected GPartLimiter newPartLimiter() {
+		return new GPartLimiter(this.maxPartCount, this.maxHeaderSize, this.maxTotalHeaderSize, getMetricsListener());
+	}
+
+	/**
+	 * Set the maximum allowed size (in bytes) of a part held in memory. Parts growing past it are moved to
+	 * the spill storage, temporary files by default. Default is {@value GFileItemFactory#DEFAULT_SIZE_THRESHOLD}.
+	 *
+	 * @param maxInMemorySize the maximum in memory size allowed
+	 * @see GFileItemFactory#setSizeThreshold
+	 */
+	public void setMaxInMemorySize(int maxInMemorySize) {
+		this.fileItemFactory.setSizeThreshold(maxInMemorySize);
+	}
+
+	/**
+	 * Set the temporary directory where parts growing past the maximum in memory size are stored.
+	 * Default is the system temporary directory.
+	 * Replaces the spill storage factory by a {@link GFileStorageFactory} using the given directory.
+	 *
+	 * @param uploadTempDir the temporary directory to use
+	 * @throws IOException if the directory could not be resolved
+	 * @see #setSpillStorageFactory
+	 */
+	public void setUploadTempDir(Resource uploadTempDir) throws IOException {
+		if (!uploadTempDir.exists() && !uploadTempDir.getFile().mkdirs()) {
+			throw new IllegalArgumentException("Given uploadTempDir [" + uploadTempDir + "] could not be created");
+		}
+		GFileStorageFactory spillStorageFactory = new GFileStorageFactory();
+		spillStorageFactory.setRepository(uploadTempDir.getFile());
+		this.fileItemFactory.setSpillStorageFactory(spillStorageFactory);
+	}
+
+	/**
+	 * Set the factory for the storages taking over parts growing past the maximum in memory size.
+	 * Default is a {@link GFileStorageFactory} using the system default temporary directory.
+	 *
+	 * @param spillStorageFactory the spill storage factory to use
+	 * @see GFileItemFactory#setSpillStorageFactory
+	 */
+	public void setSpillStorageFactory(GStorageFactory spillStorageFactory) {
+		this.fileItemFactory.setSpillStorageFactory(spillStorageFactory);
+	}
+
+	/**
+	 * Set the factory for the storages holding the content of uploaded items, e.g. a {@link GMemoryStorageFactory}
+	 * for heap or direct memory, or a {@link GFileStorageFactory} for (memory mapped) temporary files.
+	 * Default is heap memory.
+	 *
+	 * @param storageFactory the storage factory to use
+	 * @see GFileItemFactory#setStorageFactory
+	 */
+	public void setStorageFactory(GStorageFactory storageFactory) {
+		this.fileItemFactory.setStorageFactory(storageFactory);
+	}
+
+	/**
+	 * Set the budget bounding the memory held by the uploads of this resolver together, across concurrent
+	 * requests. Its policy decides whether an upload exceeding it waits, spills to the spill storage or is
+	 * rejected with a {@link GMemoryBudgetExceededException}. Default is no budget.
+	 *
+	 * @param memoryBudget the memory budget to use
+	 * @see GFileItemFactory#setMemoryBudget
+	 */
+	public void setMemoryBudget(GMemoryBudget memoryBudget) {
+		this.fileItemFactory.setMemoryBudget(memoryBudget);
+	}
+
+	/**
+	 * Set the listener receiving measurements of the parsed requests and their parts, e.g. a
+	 * {@link GCountingMetricsListener}. Default is {@link GMetricsListener#NONE}, measuring nothing.
+	 *
+	 * @param metricsListener the metrics listener to use
+	 * @see GFileItemFactory#setMetricsListener
+	 */
+	public void setMetricsListener(GMetricsListener metricsListener) {
+		this.fileItemFactory.setMetricsListener(metricsListener);
+	}
+
+	/**
+	 * Return the listener receiving measurements of the parsed requests and their parts.
+	 *
+	 * @return the metrics listener
+	 */
+	public GMetricsListener getMetricsListener() {
+		return this.fileItemFactory.getMetricsListener();
+	}
+
+	/**
+	 * Set the algorithms of the digests to compute over each uploaded file while it is received, e.g.
+	 * <code>SHA-256</code>. The digests are available from {@link GMultipartFile#getDigest(String)}.
+	 *
+	 * @param digestAlgorithms the digest algorithms
+	 * @see GFileItemFactory#setDigestAlgorithms
+	 */
+	public void setDigestAlgorithms(String... digestAlgorithms) {
+		this.fileItemFactory.setDigestAlgorithms(digestAlgorithms);
+	}
+
+	/**
+	 * Set the store sharing the content of identical uploaded files across requests, e.g. logos sent again and
+	 * again. Default is none.
+	 *
+	 * @param dedupStore the dedup store
+	 * @see GFileItemFactory#setDedupStore
+	 */
+	public void setDedupStore(GDedupStore dedupStore) {
+		this.fileItemFactory.setDedupStore(dedupStore);
+	}
+
+	/**
+	 * Set the processors to run on the content of each uploaded file once received, e.g. to compute a checksum,
+	 * by name. Their results are available from {@link GMultipartFile#getProcessingResult(String)}.
+	 *
+	 * @param partProcessors the part processors, by name
+	 * @see GFileItemFactory#setPartProcessors
+	 */
+	public void setPartProcessors(Map<String, GPartProcessor> partProcessors) {
+		this.fileItemFactory.setPartProcessors(partProcessors);
+	}
+
+	/**
+	 * Set the sinks receiving the content of the uploaded files of the given field names as it is read, e.g. to
+	 * forward them to an object store without buffering them. The resulting multipart files only expose their
+	 * metadata, digests and {@link GMultipartFile#getSinkResult() sink result}.
+	 *
+	 * @param partSinks the part sinks, by field name
+	 * @see GFileItemFactory#setPartSinks
+	 */
+	public void setPartSinks(Map<String, GPartSink> partSinks) {
+		this.fileItemFactory.setPartSinks(partSinks);
+	}
+
+	/**
+	 * Set the executor running the part processors while the rest of the request is being read. Default is none,
+	 * processing each file on the request thread.
+	 *
+	 * @param partProcessorExecutor the executor, e.g. from {@link GPartProcessing#newExecutor(int)}
+	 * @see GFileItemFactory#setPartProcessorExecutor
+	 */
+	public void setPartProcessorExecutor(Executor partProcessorExecutor) {
+		this.fileItemFactory.setPartProcessorExecutor(partProcessorExecutor);
 	}
 
 	/**
@@ -122,6 +366,7 @@ public abstract class GFileUploadSupport {
 	 */
 	public void setDefaultEncoding(String defaultEncoding) {
 		this.fileUpload.setHeaderEncoding(defaultEncoding);
+		this.encodingFileUploads.clear();
 	}
 
 	/**
@@ -162,27 +407,63 @@ public abstract class GFileUploadSupport {
 	/**
 	 * Determine an appropriate FileUpload instance for the given encoding.
 	 * <p>
-	 * Default implementation returns the shared FileUpload instance if the encoding matches, else creates a new
-	 * FileUpload instance with the same configuration other than the desired encoding.
+	 * Default implementation returns the shared FileUpload instance if the encoding matches, else a FileUpload
+	 * instance with the same configuration other than the desired encoding. Those instances are cached per
+	 * encoding, for up to {@value #MAX_CACHED_ENCODINGS} encodings, since the encoding comes from the request;
+	 * they are never modified once cached, and are dropped when the configuration changes.
 	 *
 	 * @param encoding the character encoding to use
 	 * @return an appropriate FileUpload instance.
 	 */
 	protected FileUpload prepareFileUpload(String encoding) {
 		FileUpload fileUpload = getFileUpload();
-		FileUpload actualFileUpload = fileUpload;
+		if (encoding == null || encoding.equals(fileUpload.getHeaderEncoding())) {
+			return fileUpload;
+		}
 
-		// Use new temporary FileUpload instance if the request specifies
+		// Use a FileUpload instance for the request encoding if the request specifies
 		// its own encoding that does not match the default encoding.
-		if (encoding != null && !encoding.equals(fileUpload.getHeaderEncoding())) {
+		FileUpload actualFileUpload = this.encodingFileUploads.get(encoding);
+		if (actualFileUpload == null || actualFileUpload.getSizeMax() != fileUpload.getSizeMax() ||
+				actualFileUpload.getFileSizeMax() != fileUpload.getFileSizeMax()) {
 			actualFileUpload = newFileUpload(getFileItemFactory());
 			actualFileUpload.setSizeMax(fileUpload.getSizeMax());
+			actualFileUpload.setFileSizeMax(fileUpload.getFileSizeMax());
 			actualFileUpload.setHeaderEncoding(encoding);
+			if (this.encodingFileUploads.size() < MAX_CACHED_ENCODINGS) {
+				this.encodingFileUploads.put(encoding, actualFileUpload);
+			}
 		}
-
 		return actualFileUpload;
 	}
 
+	/**
+	 * Read the given part of a request into a new FileItem, added to the given list before its content is read so
+	 * that it is cleaned up if reading fails.
+	 *
+	 * @param itemStream the part, as returned by a Commons FileItemIterator
+	 * @param partLimiter the limiter counting the parts of the request
+	 * @param fileItems the list to add the new FileItem to
+	 * @return the new FileItem
+	 * @throws GPartLimitExceededException if the request has too many parts or header bytes
+	 * @throws IOException if the part could not be read, e.g. a FileUploadIOException if it is too large
+	 */
+	protected FileItem readFileItem(FileItemStream itemStream, GPartLimiter partLimiter, List<FileItem> fileItems)
+			throws IOException {
+		partLimiter.partStarted(itemStream);
+		FileItem fileItem = getFileItemFactory().createItem(itemStream.getFieldName(), itemStream.getContentType(),
+				itemStream.isFormField(), itemStream.getName());
+		fileItems.add(fileItem);
+		if (fileItem instanceof FileItemHeadersSupport) {
+			((FileItemHeadersSupport) fileItem).setHeaders(itemStream.getHeaders());
+		}
+		// close only once fully read: a partial content must not complete the storage, e.g. a sink
+		OutputStream out = fileItem.getOutputStream();
+		Streams.copy(itemStream.openStream(), out, false);
+		out.close();
+		return fileItem;
+	}
+
 	/**
 	 * Parse the given List of Commons FileItems into a Spring MultipartParsingResult, containing Spring MultipartFile
 	 * instances and a Map of multipart parameter.
@@ -193,54 +474,130 @@ public abstract class GFileUploadSupport {
 	 * @see GMultipartFile#CommonsMultipartFile(org.apache.commons.fileupload.FileItem)
 	 */
 	protected MultipartParsingResult parseFileItems(List<FileItem> fileItems, String encoding) {
-		MultiValueMap<String, MultipartFile> multipartFiles = new LinkedMultiValueMap<String, MultipartFile>();
-		Map<String, String[]> multipartParameters = new HashMap<String, String[]>();
-		Map<String, String> multipartParameterContentTypes = new HashMap<String, String>();
+		MultiValueMap<String, MultipartFile> multipartFiles = new LinkedMultiValueMap<String, MultipartFile>(
+				GParameterAccumulator.capacityFor(fileItems.size()));
+		GParameterAccumulator multipartParameters = new GParameterAccumulator(fileItems.size());
 
 		// Extract multipart files and multipart parameters.
 		for (FileItem fileItem : fileItems) {
-			if (fileItem.isFormField()) {
-				String value = null;
-				if (encoding != null) {
-					try {
-						value = fileItem.getString(encoding);
-					} catch (UnsupportedEncodingException ex) {
-						if (logger.isWarnEnabled()) {
-							logger.warn("Could not decode multipart item '" + fileItem.getFieldName() + "' with encoding '" + encoding + "': using platform default");
-						}
-						value = fileItem.getString();
-					}
-				} else {
-					value = fileItem.getString();
-				}
-				String[] curParam = multipartParameters.get(fileItem.getFieldName());
-				if (curParam == null) {
-					// simple form field
-					multipartParameters.put(fileItem.getFieldName(), new String[] { value });
+			parseFileItem(fileItem, encoding, multipartFiles, multipartParameters);
+		}
+		return new MultipartParsingResult(multipartFiles, multipartParameters.getParameters(),
+				multipartParameters.getContentTypes(), fileItems);
+	}
+
+	/**
+	 * Add the given Commons FileItem either to the given multipart files as a Spring MultipartFile or, for a form
+	 * field, to the given multipart parameters. A form field item is deleted once its value is decoded.
+	 *
+	 * @param fileItem the Commons FileItem to parse
+	 * @param encoding the encoding to use for form fields
+	 * @param multipartFiles the multipart files to add a file to
+	 * @param multipartParameters the multipart parameters to add a form field value and content type to
+	 */
+	protected void parseFileItem(FileItem fileItem, String encoding, MultiValueMap<String, MultipartFile> multipartFiles,
+			GParameterAccumulator multipartParameters) {
+		if (fileItem.isFormField()) {
+			String value = getFormFieldValue(fileItem, encoding);
+			multipartParameters.add(fileItem.getFieldName(), value, fileItem.getContentType());
+		} else {
+			addMultipartFile(fileItem, multipartFiles);
+		}
+	}
+
+	/**
+	 * Decode the value of the given form field, then delete its content: the value is all that is kept of a form
+	 * field.
+	 *
+	 * @param fileItem the form field
+	 * @param encoding the encoding to use, or <code>null</code> for the platform default
+	 * @return the value
+	 */
+	protected String getFormFieldValue(FileItem fileItem, String encoding) {
+		String value = null;
+		if (encoding != null) {
+			try {
+				if (fileItem instanceof GFileItem) {
+					value = ((GFileItem) fileItem).getString(getCharset(encoding));
 				} else {
-					// array of simple form fields
-					String[] newParam = StringUtils.addStringToArray(curParam, value);
-					multipartParameters.put(fileItem.getFieldName(), newParam);
+					value = fileItem.getString(encoding);
 				}
-				multipartParameterContentTypes.put(fileItem.getFieldName(), fileItem.getContentType());
-			} else {
-				// multipart file field
-				GMultipartFile file = new GMultipartFile(fileItem);
-				multipartFiles.add(file.getName(), file);
-				if (logger.isDebugEnabled()) {
-					logger.debug("Found multipart file [" + file.getName() + "] of size " + file.getSize() +
-							" bytes with original filename [" + file.getOriginalFilename() + "], stored " +
-							file.getStorageDescription());
+			} catch (UnsupportedEncodingException ex) {
+				if (logger.isWarnEnabled()) {
+					logger.warn("Could not decode multipart item '" + fileItem.getFieldName() + "' with encoding '" + encoding + "': using platform default");
 				}
+				value = fileItem.getString();
+			}
+		} else {
+			value = fileItem.getString();
+		}
+		// the decoded value is all that is kept of a form field
+		fileItem.delete();
+		return value;
+	}
+
+	/**
+	 * Add a GMultipartFile for the given file item to the given map.
+	 *
+	 * @param fileItem the file field
+	 * @param multipartFiles the map of field name to multipart files
+	 */
+	protected void addMultipartFile(FileItem fileItem, MultiValueMap<String, MultipartFile> multipartFiles) {
+		GMultipartFile file = new GMultipartFile(fileItem);
+		multipartFiles.add(file.getName(), file);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Found multipart file [" + file.getName() + "] of size " + file.getSize() +
+					" bytes with original filename [" + file.getOriginalFilename() + "], stored " +
+					file.getStorageDescription());
+		}
+	}
+
+	/**
+	 * Convert the given parse failure into a MultipartException, a MaxUploadSizeExceededException reporting the
+	 * exceeded limit if the request or one of its parts is too large.
+	 *
+	 * @param ex the failure, typically a FileUploadException
+	 * @return the MultipartException to throw
+	 */
+	protected static MultipartException toMultipartException(Throwable ex) {
+		if (ex instanceof FileUploadBase.SizeLimitExceededException) {
+			return new MaxUploadSizeExceededException(
+					((FileUploadBase.SizeLimitExceededException) ex).getPermittedSize(), ex);
+		} else if (ex instanceof FileUploadBase.FileSizeLimitExceededException) {
+			return new MaxUploadSizeExceededException(
+					((FileUploadBase.FileSizeLimitExceededException) ex).getPermittedSize(), ex);
+		}
+		return new MultipartException("Could not parse multipart servlet request", ex);
+	}
+
+	/**
+	 * Return the charset of the given encoding. Charsets are cached per encoding, for up to
+	 * {@value #MAX_CACHED_ENCODINGS} encodings.
+	 *
+	 * @param encoding the character encoding
+	 * @return the charset
+	 * @throws UnsupportedEncodingException if the encoding is not supported
+	 */
+	protected Charset getCharset(String encoding) throws UnsupportedEncodingException {
+		Charset charset = this.charsets.get(encoding);
+		if (charset == null) {
+			try {
+				charset = Charset.forName(encoding);
+			} catch (IllegalArgumentException ex) {
+				throw new UnsupportedEncodingException(encoding);
+			}
+			if (this.charsets.size() < MAX_CACHED_ENCODINGS) {
+				this.charsets.put(encoding, charset);
 			}
 		}
-		return new MultipartParsingResult(multipartFiles, multipartParameters, multipartParameterContentTypes);
+		return charset;
 	}
 
 	/**
 	 * Cleanup the Spring MultipartFiles created during multipart parsing.
 	 * <p>
-	 * Deletes the underlying Commons FileItem instances.
+	 * Deletes the underlying Commons FileItem instances, releasing their storage (and returning pooled
+	 * segments) even if deleting one of them fails.
 	 *
 	 * @param multipartFiles Collection of MultipartFile instances
 	 * @see org.apache.commons.fileupload.FileItem#delete()
@@ -249,14 +606,39 @@ public abstract class GFileUploadSupport {
 		for (MultipartFile file : multipartFiles) {
 			if (file instanceof GMultipartFile) {
 				GMultipartFile cmf = (GMultipartFile) file;
-				cmf.getFileItem().delete();
 				if (logger.isDebugEnabled()) {
 					logger.debug("Cleaning up multipart file [" + cmf.getName() + "] with original filename [" + cmf.getOriginalFilename() + "], stored " + cmf.getStorageDescription());
 				}
+				try {
+					cmf.getFileItem().delete();
+				} catch (RuntimeException ex) {
+					logger.warn("Failed to clean up multipart file [" + cmf.getName() + "]", ex);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Cleanup all the Commons FileItems created during multipart parsing, form fields included.
+	 * <p>
+	 * Deletes every item, releasing its storage, even if deleting one of them fails.
+	 *
+	 * @param fileItems List of FileItem instances
+	 * @see org.apache.commons.fileupload.FileItem#delete()
+	 */
+	protected void cleanupFileItems(List<FileItem> fileItems) {
+		for (FileItem fileItem : fileItems) {
+			try {
+				fileItem.delete();
+			} catch (RuntimeException ex) {
+				logger.warn("Failed to clean up multipart item [" + fileItem.getFieldName() + "]", ex);
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Cleaned up " + fileItems.size() + " multipart item(s)");
+		}
+	}
+
 	/**
 	 * Holder for a Map of Spring MultipartFiles and a Map of multipart parameters.
 	 */
@@ -268,6 +650,8 @@ public abstract class GFileUploadSupport {
 
 		private final Map<String, String> multipartParameterContentTypes;
 
+		private final List<FileItem> fileItems;
+
 		/**
 		 * Create a new MultipartParsingResult.
 		 *
@@ -276,9 +660,23 @@ public abstract class GFileUploadSupport {
 		 */
 		public MultipartParsingResult(MultiValueMap<String, MultipartFile> mpFiles, Map<String, String[]> mpParams,
                                       Map<String, String> mpParamContentTypes) {
+			this(mpFiles, mpParams, mpParamContentTypes, Collections.<FileItem>emptyList());
+		}
+
+		/**
+		 * Create a new MultipartParsingResult.
+		 *
+		 * @param mpFiles Map of field name to MultipartFile instance
+		 * @param mpParams Map of field name to form field String value
+		 * @param mpParamContentTypes Map of field name to form field content type
+		 * @param fileItems all the FileItems created while parsing
+		 */
+		public MultipartParsingResult(MultiValueMap<String, MultipartFile> mpFiles, Map<String, String[]> mpParams,
+				Map<String, String> mpParamContentTypes, List<FileItem> fileItems) {
 			this.multipartFiles = mpFiles;
 			this.multipartParameters = mpParams;
-            this.multipartParameterContentTypes = mpParamContentTypes;
+			this.multipartParameterContentTypes = mpParamContentTypes;
+			this.fileItems = fileItems;
 		}
 
 		/**
@@ -298,6 +696,13 @@ public abstract class GFileUploadSupport {
 		public Map<String, String> getMultipartParameterContentTypes() {
 			return this.multipartParameterContentTypes;
 		}
+
+		/**
+		 * Return all the FileItems created while parsing, form fields included.
+		 */
+		public List<FileItem> getFileItems() {
+			return this.fileItems;
+		}
 	}
 
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+/**
+ * <p>The publisher, subscriber and subscription interfaces of demand-driven streams, with the same methods and
+ * contracts as <code>java.util.concurrent.Flow</code> and Reactive Streams, which are not available on Java 8, the
+ * release this library is compiled for.
+ * Adapting them to either is a matter of delegating each method.
+ *
+ * @author kernel164
+ * @see GPartPublisher
+ */
+public final class GFlow {
+
+	private GFlow() {
+	}
+
+	/**
+	 * A producer of items received by a subscriber, as it demands them.
+	 *
+	 * @param <T> the type of the items.
+	 */
+	public interface Publisher<T> {
+
+		/**
+		 * Adds the given subscriber. The subscriber receives {@link Subscriber#onSubscribe} first, then items as it
+		 * requests them, and finally {@link Subscriber#onComplete} or {@link Subscriber#onError}.
+		 *
+		 * @param subscriber the subscriber.
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * A receiver of the items of a publisher.
+	 *
+	 * @param <T> the type of the items.
+	 */
+	public interface Subscriber<T> {
+
+		/**
+		 * Called first, with the subscription to request items from.
+		 *
+		 * @param subscription the subscription.
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with the next item, once requested.
+		 *
+		 * @param item the item.
+		 */
+		void onNext(T item);
+
+		/**
+		 * Called when the publisher failed. No other method is called afterwards.
+		 *
+		 * @param throwable the failure.
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Called when the publisher has no more items. No other method is called afterwards.
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * The link between a publisher and a subscriber.
+	 */
+	public interface Subscription {
+
+		/**
+		 * Requests the given number of additional items. A non-positive number fails the subscription with an
+		 * {@link IllegalArgumentException}.
+		 *
+		 * @param n the number of items.
+		 */
+		void request(long n);
+
+		/**
+		 * Stops the delivery of items, possibly after some already on their way.
+		 */
+		void cancel();
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock free histogram of non negative values, with power of two buckets: bucket <i>i</i> counts the
+ * values below 2<sup><i>i</i></sup> and not below 2<sup><i>i</i>-1</sup>, bucket 0 counts zeros.
+ *
+ * <p>Percentiles are approximated by the upper bound of their bucket, i.e. within a factor of two.
+ *
+ * @author kernel164
+ * @see GCountingMetricsListener
+ */
+public class GHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sum = new AtomicLong();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value the value.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return the count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the recorded values.
+	 *
+	 * @return the sum.
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 *
+	 * @return the maximum, or 0 if no value was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 *
+	 * @return the mean, or 0 if no value was recorded.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n > 0 ? (double) sum.get() / n : 0);
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of the recorded values.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the upper bound of the bucket holding the percentile, at most the maximum.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = getBuckets();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return (i == 0 ? 0 : Math.min(getUpperBound(i), getMax()));
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns a snapshot of the bucket counts.
+	 *
+	 * @return the count of each bucket.
+	 * @see #getUpperBound(int)
+	 */
+	public long[] getBuckets() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the largest value counted by the given bucket.
+	 *
+	 * @param bucket the bucket index.
+	 * @return the upper bound (inclusive) of the bucket.
+	 */
+	public static long getUpperBound(int bucket) {
+		return (bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1);
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * <p>Multipart request reading its parts on demand, in arrival order, as created by {@link GMultipartResolver}
+ * when resolving incrementally.
+ *
+ * <p>Asking for a single file or parameter reads the request up to the first part of that name: the parts
+ * preceding it are buffered as usual, the rest of the body is left unread. A request rejected after looking at
+ * its first fields, e.g. an authentication token or an unexpected content type, thus never reads the payload
+ * following them. Asking for all the values of a name, or for the maps and names of the files or parameters,
+ * reads the whole request, and so does asking for a name without any part, since the whole request must be
+ * read to find that out. A parameter present in the query string is returned by {@link #getParameter} without
+ * reading anything; unlike in the other modes, it then takes precedence over parts of the same name which have
+ * not been read yet.
+ *
+ * <p>Parse exceptions are thrown at the time of the access which reads the faulty part, and again at every
+ * later access reading the request.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setResolveIncrementally
+ */
+public class GIncrementalMultipartHttpServletRequest extends GMultipartHttpServletRequest {
+
+	private final GMultipartResolver resolver;
+
+	private final FileItemIterator itemIterator;
+
+	private final String encoding;
+
+	private final GPartLimiter partLimiter;
+
+	private final GParameterAccumulator parameterAccumulator = new GParameterAccumulator(16);
+
+	private final long start;
+
+	private boolean complete;
+
+	private MultipartException failure;
+
+	/**
+	 * Create a new GIncrementalMultipartHttpServletRequest, reading nothing yet.
+	 *
+	 * @param request the servlet request to wrap
+	 * @param resolver the resolver creating and parsing the file items
+	 * @param itemIterator the iterator over the parts of the request
+	 * @param encoding the encoding to use for form fields
+	 */
+	public GIncrementalMultipartHttpServletRequest(HttpServletRequest request, GMultipartResolver resolver,
+			FileItemIterator itemIterator, String encoding) {
+		super(request, new LinkedMultiValueMap<String, MultipartFile>(), new HashMap<String, String[]>(),
+				new HashMap<String, String>(), new ArrayList<FileItem>());
+		this.resolver = resolver;
+		this.itemIterator = itemIterator;
+		this.encoding = encoding;
+		setMultipartParameterContentTypes(this.parameterAccumulator.getContentTypes());
+		this.partLimiter = resolver.newPartLimiter();
+		this.start = (resolver.getMetricsListener() != GMetricsListener.NONE ? System.nanoTime() : 0);
+	}
+
+	/**
+	 * Return whether the whole request has been read.
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	@Override
+	public MultipartFile getFile(String name) {
+		readUntil(name);
+		return super.getFile(name);
+	}
+
+	@Override
+	public List<MultipartFile> getFiles(String name) {
+		readAll();
+		return super.getFiles(name);
+	}
+
+	@Override
+	public Iterator<String> getFileNames() {
+		readAll();
+		return super.getFileNames();
+	}
+
+	@Override
+	public Map<String, MultipartFile> getFileMap() {
+		readAll();
+		return super.getFileMap();
+	}
+
+	@Override
+	public MultiValueMap<String, MultipartFile> getMultiFileMap() {
+		readAll();
+		return super.getMultiFileMap();
+	}
+
+	@Override
+	public String getParameter(String name) {
+		if (!this.parameterAccumulator.contains(name)) {
+			String queryValue = getRequest().getParameter(name);
+			if (queryValue != null) {
+				return queryValue;
+			}
+		}
+		readUntil(name);
+		return super.getParameter(name);
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		readAll();
+		return super.getParameterValues(name);
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		readAll();
+		return super.getParameterNames();
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		readAll();
+		return super.getParameterMap();
+	}
+
+	@Override
+	public String getMultipartContentType(String paramOrFileName) {
+		readUntil(paramOrFileName);
+		return super.getMultipartContentType(paramOrFileName);
+	}
+
+	@Override
+	public HttpHeaders getMultipartHeaders(String paramOrFileName) {
+		readUntil(paramOrFileName);
+		return super.getMultipartHeaders(paramOrFileName);
+	}
+
+	/**
+	 * Returns the parameters read so far, freezing the values of the fields read since the previous call.
+	 */
+	@Override
+	protected Map<String, String[]> getMultipartParameters() {
+		Map<String, String[]> multipartParameters = super.getMultipartParameters();
+		this.parameterAccumulator.updateParameters(multipartParameters);
+		return multipartParameters;
+	}
+
+	/**
+	 * Read the request until a part of the given name has been read, or until its end.
+	 */
+	private void readUntil(String name) {
+		while (!getMultipartFiles().containsKey(name) && !this.parameterAccumulator.contains(name) && readNext()) {
+			// keep reading
+		}
+	}
+
+	/**
+	 * Read the whole request.
+	 */
+	private void readAll() {
+		while (readNext()) {
+			// keep reading
+		}
+	}
+
+	/**
+	 * Read the next part of the request.
+	 *
+	 * @return <code>false</code> if the request has no more parts.
+	 */
+	private boolean readNext() {
+		if (this.failure != null) {
+			throw this.failure;
+		}
+		if (this.complete) {
+			return false;
+		}
+		try {
+			if (!this.itemIterator.hasNext()) {
+				this.complete = true;
+				if (this.start != 0) {
+					this.resolver.getMetricsListener().requestParsed(getFileItems().size(), getRequest().getContentLength(),
+							System.nanoTime() - this.start);
+				}
+				return false;
+			}
+			FileItem fileItem = this.resolver.readFileItem(this.itemIterator.next(), this.partLimiter, getFileItems());
+			this.resolver.parseFileItem(fileItem, this.encoding, getMultipartFiles(), this.parameterAccumulator);
+			return true;
+		} catch (MultipartException ex) {
+			throw fail(ex);
+		} catch (FileUploadException ex) {
+			throw fail(GFileUploadSupport.toMultipartException(ex));
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			throw fail(GFileUploadSupport.toMultipartException(ex.getCause()));
+		} catch (IOException ex) {
+			throw fail(new MultipartException("Could not read multipart servlet request", ex));
+		} catch (RuntimeException ex) {
+			throw fail(new MultipartException("Could not parse multipart servlet request", ex));
+		}
+	}
+
+	private MultipartException fail(MultipartException ex) {
+		if (ex instanceof MaxUploadSizeExceededException) {
+			this.resolver.getMetricsListener().sizeLimitExceeded(((MaxUploadSizeExceededException) ex).getMaxUploadSize());
+		}
+		this.failure = ex;
+		return ex;
+	}
+}
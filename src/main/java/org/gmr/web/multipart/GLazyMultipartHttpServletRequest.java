@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.gmr.web.multipart.GFileUploadSupport.MultipartParsingResult;
+import org.springframework.web.multipart.MultipartException;
+
+/**
+ * <p>Multipart request parsed at the time of the first access to its files, parameters or parameter content
+ * types, as created by {@link GMultipartResolver} when resolving lazily.
+ *
+ * <p>The request is parsed once: files, parameters and parameter content types are all taken from the same
+ * parsing result. If parsing fails, the same exception is thrown again on every later access, since the request
+ * body has been consumed. Cleaning up a request which has never been accessed does not parse it.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setResolveLazily
+ */
+public class GLazyMultipartHttpServletRequest extends GMultipartHttpServletRequest {
+
+	private final GMultipartResolver resolver;
+
+	private boolean parsed;
+
+	private MultipartException failure;
+
+	/**
+	 * Create a new GLazyMultipartHttpServletRequest, parsed on first access by the given resolver.
+	 *
+	 * @param request the servlet request to wrap
+	 * @param resolver the resolver parsing the request
+	 */
+	public GLazyMultipartHttpServletRequest(HttpServletRequest request, GMultipartResolver resolver) {
+		super(request);
+		this.resolver = resolver;
+	}
+
+	@Override
+	protected void initializeMultipart() {
+		if (this.failure != null) {
+			throw this.failure;
+		}
+		this.parsed = true;
+		try {
+			MultipartParsingResult parsingResult = this.resolver.parseRequest(getRequest());
+			setMultipartFiles(parsingResult.getMultipartFiles());
+			setMultipartParameters(parsingResult.getMultipartParameters());
+			setMultipartParameterContentTypes(parsingResult.getMultipartParameterContentTypes());
+			setFileItems(parsingResult.getFileItems());
+		} catch (MultipartException ex) {
+			this.failure = ex;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Return whether the request has been parsed, successfully or not.
+	 */
+	public boolean isParsed() {
+		return this.parsed;
+	}
+}
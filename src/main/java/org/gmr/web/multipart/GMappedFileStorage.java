@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Storage which writes the content of a file item to a temporary file, like {@link GTempFileStorage},
+ * and reads it back through memory mapping instead of file streams.
+ *
+ * <p>The file is mapped once, in regions of at most 2 GB, the first time the content is read. Reading
+ * then goes straight through the operating system's page cache, without read calls or intermediate copies.
+ *
+ * <p><b>NOTE:</b> a mapping is only released when its buffer is garbage collected; on platforms which do not
+ * allow deleting mapped files (Windows) the file is deleted on JVM exit instead.
+ *
+ * @author kernel164
+ * @see GFileStorageFactory#setMemoryMapped
+ */
+public class GMappedFileStorage extends GTempFileStorage {
+
+	private MappedByteBuffer[] regions;
+
+	/**
+	 * Create a new storage backed by a new temporary file.
+	 *
+	 * @param repository the directory to create the file in, or <code>null</code> for the system default.
+	 * @exception IOException if the file could not be created.
+	 */
+	public GMappedFileStorage(File repository) throws IOException {
+		super(repository);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		MappedByteBuffer[] mapped = map();
+		ByteBuffer[] views = new ByteBuffer[mapped.length];
+		for (int i = 0; i < mapped.length; i++) {
+			views[i] = mapped[i].duplicate();
+		}
+		return new GByteBufferInputStream(views);
+	}
+
+	@Override
+	public byte[] toByteArray() throws IOException {
+		if (getSize() > Integer.MAX_VALUE) {
+			throw new IllegalStateException("File too large for a single array: " + getSize() + " bytes");
+		}
+		byte[] data = new byte[(int) getSize()];
+		int pos = 0;
+		for (MappedByteBuffer region : map()) {
+			ByteBuffer src = region.duplicate();
+			int count = src.remaining();
+			src.get(data, pos, count);
+			pos += count;
+		}
+		return data;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getInputStream();
+		byte[] transfer = new byte[GChunkedBuffer.DEFAULT_CHUNK_SIZE];
+		int count;
+		while ((count = in.read(transfer)) != -1) {
+			out.write(transfer, 0, count);
+		}
+	}
+
+	@Override
+	public void transferTo(File dest) throws IOException {
+		regions = null;
+		super.transferTo(dest);
+	}
+
+	@Override
+	public String getDescription() {
+		return "mapped at [" + getFile().getAbsolutePath() + "]";
+	}
+
+	@Override
+	public void release() {
+		regions = null;
+		super.release();
+	}
+
+	/**
+	 * Maps the content of the file, once the writing has finished.
+	 */
+	private synchronized MappedByteBuffer[] map() throws IOException {
+		if (regions == null) {
+			close();
+			long size = getSize();
+			int count = (int) ((size + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE);
+			MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+			RandomAccessFile raf = new RandomAccessFile(getFile(), "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				for (int i = 0; i < count; i++) {
+					long offset = (long) i * Integer.MAX_VALUE;
+					mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Integer.MAX_VALUE, size - offset));
+				}
+			} finally {
+				raf.close();
+			}
+			regions = mapped;
+		}
+		return regions;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A budget of bytes shared by all the uploads of a resolver, bounding the memory they may hold in total
+ * across concurrent requests.
+ *
+ * <p>{@link GOutputStream} charges the budget while a part grows in memory, and releases its share when the
+ * part moves to the spill storage or when its {@link GFileItem} is deleted. When the budget is exhausted, the
+ * configured {@link Policy} decides whether the writer waits for memory to be released, spills its part to
+ * the spill storage, or fails with a {@link GMemoryBudgetExceededException}.
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setMemoryBudget
+ */
+public class GMemoryBudget {
+
+	/**
+	 * What to do when a part needs more memory than the budget has left.
+	 */
+	public enum Policy {
+
+		/** Wait for memory to be released, up to the maximum wait time, then reject. */
+		BLOCK,
+
+		/** Move the part to the spill storage and continue without memory. */
+		SPILL,
+
+		/** Fail right away with a {@link GMemoryBudgetExceededException}. */
+		REJECT
+	}
+
+	/** Default maximum time to wait for memory with the {@link Policy#BLOCK} policy, in milliseconds. */
+	public static final long DEFAULT_MAX_WAIT = 10000;
+
+	private final long capacity;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition released = lock.newCondition();
+
+	private long available;
+
+	private Policy policy = Policy.SPILL;
+
+	private long maxWait = DEFAULT_MAX_WAIT;
+
+	/**
+	 * Create a new budget of the given number of bytes.
+	 *
+	 * @param capacity the total number of bytes the uploads may hold in memory.
+	 */
+	public GMemoryBudget(long capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.available = capacity;
+	}
+
+	/**
+	 * Takes the given number of bytes from the budget if they are available right away.
+	 *
+	 * @param bytes the number of bytes.
+	 * @return <code>true</code> if the bytes were taken.
+	 */
+	public boolean tryAcquire(long bytes) {
+		lock.lock();
+		try {
+			if (available >= bytes) {
+				available -= bytes;
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the given number of bytes from the budget, waiting up to the maximum wait time for them to be released.
+	 *
+	 * @param bytes the number of bytes.
+	 * @return <code>true</code> if the bytes were taken, <code>false</code> if the wait timed out.
+	 * @throws InterruptedException if the current thread is interrupted while waiting.
+	 */
+	public boolean acquire(long bytes) throws InterruptedException {
+		if (bytes > capacity) {
+			return false;
+		}
+		long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+		lock.lockInterruptibly();
+		try {
+			while (available < bytes) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = released.awaitNanos(nanos);
+			}
+			available -= bytes;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives the given number of bytes back to the budget.
+	 *
+	 * @param bytes the number of bytes.
+	 */
+	public void release(long bytes) {
+		if (bytes <= 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			available = Math.min(capacity, available + bytes);
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the total number of bytes of this budget.
+	 *
+	 * @return the capacity, in bytes.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of bytes currently left in this budget.
+	 *
+	 * @return the available bytes.
+	 */
+	public long getAvailable() {
+		lock.lock();
+		try {
+			return available;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets what to do when the budget is exhausted. Default is {@link Policy#SPILL}.
+	 *
+	 * @param policy the policy.
+	 */
+	public void setPolicy(Policy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		this.policy = policy;
+	}
+
+	/**
+	 * Returns what to do when the budget is exhausted.
+	 *
+	 * @return the policy.
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Sets the maximum time to wait for memory with the {@link Policy#BLOCK} policy.
+	 * Default is {@value #DEFAULT_MAX_WAIT} milliseconds.
+	 *
+	 * @param maxWait the maximum wait time, in milliseconds.
+	 */
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Returns the maximum time to wait for memory with the {@link Policy#BLOCK} policy.
+	 *
+	 * @return the maximum wait time, in milliseconds.
+	 */
+	public long getMaxWait() {
+		return maxWait;
+	}
+}
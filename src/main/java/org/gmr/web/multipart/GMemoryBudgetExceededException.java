@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import org.springframework.web.multipart.MultipartException;
+
+/**
+ * MultipartException thrown when an upload needs more memory than the shared {@link GMemoryBudget} has left.
+ *
+ * @author kernel164
+ * @see GMemoryBudget.Policy
+ */
+public class GMemoryBudgetExceededException extends MultipartException {
+
+	private static final long serialVersionUID = 3385432216440946813L;
+
+	private final long capacity;
+
+	/**
+	 * Constructor for GMemoryBudgetExceededException.
+	 *
+	 * @param capacity the capacity of the memory budget
+	 */
+	public GMemoryBudgetExceededException(long capacity) {
+		super("Upload memory budget of " + capacity + " bytes exhausted");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Return the capacity of the memory budget.
+	 */
+	public long getCapacity() {
+		return this.capacity;
+	}
+}
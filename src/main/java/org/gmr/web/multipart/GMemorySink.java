@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * <p>{@link GPartSink} collecting each uploaded file into a byte array, the result of the sink. Meant for testing
+ * the code consuming sink results, or for small files handed over to another component: the arrays are neither
+ * bounded nor charged to the {@link GMemoryBudget}.
+ *
+ * @author kernel164
+ */
+public class GMemorySink implements GPartSink {
+
+	public GSinkStorage open(FileItem fileItem) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		return new GSinkStorage(out, "memory") {
+
+			@Override
+			protected Object complete() {
+				return out.toByteArray();
+			}
+		};
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+/**
+ * <p>{@link GStorageFactory} keeping the content of file items in memory, in a {@link GChunkedBuffer}.
+ *
+ * <p>Chunks are allocated on the heap by default. Set "direct" to <code>true</code> to allocate them as
+ * direct (off-heap) buffers instead, which keeps large uploads out of the garbage collected heap.
+ *
+ * <p>Set "poolSize" to reuse chunks across requests: chunks are then borrowed from a bounded
+ * {@link GSegmentPool} owned by this factory, and returned to it when the file items are deleted.
+ *
+ * @author kernel164
+ */
+public class GMemoryStorageFactory implements GStorageFactory {
+
+	private int chunkSize = GChunkedBuffer.DEFAULT_CHUNK_SIZE;
+
+	private boolean direct = false;
+
+	private int poolSize = 0;
+
+	private volatile GSegmentPool segmentPool;
+
+	public GStorage createStorage() {
+		GSegmentPool pool = getSegmentPool();
+		return (pool != null ? new GChunkedBuffer(pool) : new GChunkedBuffer(chunkSize, direct));
+	}
+
+	/**
+	 * Returns the pool the chunks are borrowed from, creating it on first access.
+	 *
+	 * @return the segment pool, or <code>null</code> if chunks are not pooled.
+	 */
+	public GSegmentPool getSegmentPool() {
+		if (poolSize <= 0) {
+			return null;
+		}
+		GSegmentPool pool = segmentPool;
+		if (pool == null) {
+			synchronized (this) {
+				pool = segmentPool;
+				if (pool == null) {
+					pool = new GSegmentPool(chunkSize, direct, poolSize);
+					segmentPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Sets the size of a single memory chunk. Default is {@link GChunkedBuffer#DEFAULT_CHUNK_SIZE}.
+	 *
+	 * @param chunkSize the chunk size, in bytes.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		this.segmentPool = null;
+	}
+
+	/**
+	 * Returns the size of a single memory chunk.
+	 *
+	 * @return the chunk size, in bytes.
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets whether to allocate direct (off-heap) chunks instead of heap chunks. Default is <code>false</code>.
+	 *
+	 * @param direct <code>true</code> to use direct memory.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+		this.segmentPool = null;
+	}
+
+	/**
+	 * Returns whether direct (off-heap) chunks are allocated.
+	 *
+	 * @return <code>true</code> if direct memory is used.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Sets the maximum number of idle chunks kept for reuse across requests. Default is 0, not pooling chunks.
+	 *
+	 * @param poolSize the maximum number of pooled chunks.
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+		this.segmentPool = null;
+	}
+
+	/**
+	 * Returns the maximum number of idle chunks kept for reuse across requests.
+	 *
+	 * @return the maximum number of pooled chunks.
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+}
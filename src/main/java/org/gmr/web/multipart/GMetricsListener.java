@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+/**
+ * <p>Receives measurements of the multipart requests parsed by {@link GMultipartResolver} and of the parts
+ * written by {@link GOutputStream}.
+ *
+ * <p>Implementations are invoked from the request threads, concurrently, and must be thread safe and cheap.
+ * The default is {@link #NONE}, which the resolver and the output streams detect to skip measuring altogether.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setMetricsListener
+ * @see GCountingMetricsListener
+ */
+public interface GMetricsListener {
+
+	/**
+	 * Listener ignoring all measurements.
+	 */
+	GMetricsListener NONE = new GMetricsListener() {
+
+		public void partWritten(long bytes, long firstByteNanos, long writeNanos, int growthCount, boolean spilled) {
+		}
+
+		public void requestParsed(int partCount, long bytes, long parseNanos) {
+		}
+
+		public void sizeLimitExceeded(long limit) {
+		}
+
+		public void headersRead(int bytes) {
+		}
+
+		public void partLimitExceeded(String limitName, long limit) {
+		}
+	};
+
+	/**
+	 * Called when the content of a part has been fully written, i.e. its output stream is closed.
+	 *
+	 * @param bytes the size of the part, in bytes.
+	 * @param firstByteNanos the time from the creation of the part to its first byte, in nanoseconds.
+	 * @param writeNanos the time from the creation of the part to its last byte, in nanoseconds.
+	 * @param growthCount the number of times the memory of the part grew (see {@link GStorage#getGrowthCount()}).
+	 * @param spilled whether the part was moved from memory to the spill storage.
+	 */
+	void partWritten(long bytes, long firstByteNanos, long writeNanos, int growthCount, boolean spilled);
+
+	/**
+	 * Called when a request has been parsed successfully.
+	 *
+	 * @param partCount the number of parts of the request.
+	 * @param bytes the size of the request body, in bytes, or -1 if unknown.
+	 * @param parseNanos the time spent parsing the request, in nanoseconds.
+	 */
+	void requestParsed(int partCount, long bytes, long parseNanos);
+
+	/**
+	 * Called when a request is rejected for exceeding the maximum upload size.
+	 *
+	 * @param limit the maximum upload size, in bytes.
+	 */
+	void sizeLimitExceeded(long limit);
+
+	/**
+	 * Called when the headers of a part have been read.
+	 *
+	 * @param bytes the size of the headers, in bytes.
+	 */
+	void headersRead(int bytes);
+
+	/**
+	 * Called when a request is rejected for having too many parts or header bytes.
+	 *
+	 * @param limitName the name of the exceeded limit, see {@link GPartLimitExceededException#getLimitName()}.
+	 * @param limit the value of the exceeded limit.
+	 */
+	void partLimitExceeded(String limitName, long limit);
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileUploadBase;
+import org.gmr.web.multipart.GFileUploadSupport.MultipartParsingResult;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+/**
+ * <p>Multipart request parsed as its body arrives, pushed by the caller instead of read from the request input
+ * stream, so that no thread waits on a slow client.
+ *
+ * <p>The body is fed to the native {@link GMultipartParser} chunk by chunk; each part is written to its file item
+ * as soon as its bytes are fed, with the same size and part limits as the other modes. Once the whole body has
+ * been fed, {@link #finish()} returns the resolved request. On Servlet 3.1 containers, a <code>ReadListener</code>
+ * drives the feed from its callbacks, e.g. in a filter in front of the <code>DispatcherServlet</code>:
+ *
+ * <pre>
+ * final GMultipartFeed feed = resolver.openFeed(request);
+ * final AsyncContext async = request.startAsync();
+ * final ServletInputStream in = request.getInputStream();
+ * in.setReadListener(new ReadListener() {
+ *     private final byte[] buffer = new byte[8192];
+ *     public void onDataAvailable() throws IOException {
+ *         int read;
+ *         while (in.isReady() &amp;&amp; (read = in.read(buffer)) != -1) {
+ *             try {
+ *                 feed.feed(buffer, 0, read);
+ *             } catch (MultipartException ex) {
+ *                 reject(ex);
+ *                 return;
+ *             }
+ *         }
+ *     }
+ *     public void onAllDataRead() throws IOException {
+ *         try {
+ *             async.getRequest().setAttribute(GMultipartResolver.MULTIPART_REQUEST_ATTRIBUTE, feed.finish());
+ *         } catch (MultipartException ex) {
+ *             reject(ex);
+ *             return;
+ *         }
+ *         async.dispatch();
+ *     }
+ *     public void onError(Throwable t) {
+ *         feed.abort();
+ *         async.complete();
+ *     }
+ *     private void reject(MultipartException ex) throws IOException {
+ *         ((HttpServletResponse) async.getResponse()).sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+ *         async.complete();
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>On the dispatch, {@link GMultipartResolver#resolveMultipart} returns the request stored under
+ * {@link GMultipartResolver#MULTIPART_REQUEST_ATTRIBUTE} instead of reading the consumed body, and the
+ * <code>DispatcherServlet</code> cleans it up as usual. The filter passes such a dispatched request, carrying the
+ * attribute, straight down the chain.
+ *
+ * <p>A feed is not thread safe: calls must not overlap, as is the case for the callbacks of a
+ * <code>ReadListener</code>. A feed which fails deletes the items created so far and cannot be fed further.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#openFeed
+ */
+public class GMultipartFeed {
+
+	private final HttpServletRequest request;
+
+	private final GMultipartResolver resolver;
+
+	private final String encoding;
+
+	private final GFileItemPartHandler handler;
+
+	private final GMultipartParser parser;
+
+	private final long sizeMax;
+
+	private final GMetricsListener metricsListener;
+
+	private long bytesRead;
+
+	private long parseNanos;
+
+	private boolean closed;
+
+	/**
+	 * Create a new feed for the given request.
+	 *
+	 * @param request the servlet request whose body is fed
+	 * @param resolver the resolver providing the file items and limits
+	 * @param boundary the boundary, from the content type of the request
+	 * @param encoding the encoding to use for part headers and form fields
+	 * @throws UnsupportedEncodingException if the encoding is not supported
+	 */
+	GMultipartFeed(HttpServletRequest request, GMultipartResolver resolver, byte[] boundary, String encoding)
+			throws UnsupportedEncodingException {
+		this.request = request;
+		this.resolver = resolver;
+		this.encoding = encoding;
+		this.handler = new GFileItemPartHandler(resolver.getFileItemFactory());
+		this.parser = new GMultipartParser(boundary, resolver.getCharset(encoding), handler);
+		this.parser.setPartLimiter(resolver.newPartLimiter());
+		this.sizeMax = resolver.getFileUpload().getSizeMax();
+		this.metricsListener = resolver.getMetricsListener();
+	}
+
+	/**
+	 * Pushes the next chunk of the body.
+	 *
+	 * @param b the bytes.
+	 * @param off the offset of the chunk.
+	 * @param len the length of the chunk.
+	 * @throws MultipartException if the body is not valid multipart content or exceeds a limit.
+	 */
+	public void feed(byte[] b, int off, int len) throws MultipartException {
+		checkOpen();
+		if (sizeMax >= 0 && bytesRead + len > sizeMax) {
+			metricsListener.sizeLimitExceeded(sizeMax);
+			throw fail(new MaxUploadSizeExceededException(sizeMax));
+		}
+		bytesRead += len;
+		long start = (metricsListener != GMetricsListener.NONE ? System.nanoTime() : 0);
+		try {
+			parser.feed(b, off, len);
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			throw fail(GFileUploadSupport.toMultipartException(ex.getCause()));
+		} catch (IOException ex) {
+			throw fail(new MultipartException("Could not parse multipart servlet request", ex));
+		} catch (RuntimeException ex) {
+			throw fail(ex);
+		}
+		if (start != 0) {
+			parseNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Returns whether the closing boundary has been fed, i.e. whether the rest of the body can be ignored.
+	 *
+	 * @return <code>true</code> if the body is complete.
+	 */
+	public boolean isComplete() {
+		return parser.isComplete();
+	}
+
+	/**
+	 * Returns the number of bytes fed so far.
+	 *
+	 * @return the number of bytes.
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Completes the feed once the whole body has been fed, and resolves the request.
+	 *
+	 * @return the multipart request, to be cleaned up by {@link GMultipartResolver#cleanupMultipart}.
+	 * @throws MultipartException if the body is incomplete.
+	 */
+	public MultipartHttpServletRequest finish() throws MultipartException {
+		checkOpen();
+		MultipartParsingResult parsingResult;
+		try {
+			parser.finish();
+			parsingResult = resolver.parseFileItems(handler.getFileItems(), encoding);
+		} catch (IOException ex) {
+			throw fail(new MultipartException("Could not parse multipart servlet request", ex));
+		} catch (RuntimeException ex) {
+			throw fail(ex);
+		}
+		closed = true;
+		metricsListener.requestParsed(parsingResult.getFileItems().size(), bytesRead, parseNanos);
+		return new GMultipartHttpServletRequest(request, parsingResult.getMultipartFiles(),
+				parsingResult.getMultipartParameters(), parsingResult.getMultipartParameterContentTypes(),
+				parsingResult.getFileItems());
+	}
+
+	/**
+	 * Abandons the feed, e.g. when the client disconnects, deleting the items created so far. Does nothing if the
+	 * feed is already finished or failed.
+	 */
+	public void abort() {
+		if (!closed) {
+			closed = true;
+			resolver.cleanupFileItems(handler.getFileItems());
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Multipart feed is already finished or failed");
+		}
+	}
+
+	private RuntimeException fail(RuntimeException ex) {
+		abort();
+		return ex;
+	}
+}
@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
 
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.logging.Log;
@@ -82,7 +84,13 @@ public class GMultipartFile implements MultipartFile, Serializable {
 	 * Get original file name.
 	 */
 	public String getOriginalFilename() {
-		String filename = this.fileItem.getName();
+		return stripPath(this.fileItem.getName());
+	}
+
+	/**
+	 * Strip any Unix-style or Windows-style path from the file name supplied by the client.
+	 */
+	static String stripPath(String filename) {
 		if (filename == null) {
 			// Should never happen.
 			return "";
@@ -140,24 +148,130 @@ public class GMultipartFile implements MultipartFile, Serializable {
 	}
 
 	/**
-	 * This method is not supported in GAE.
+	 * Transfer the content to the given destination file, without copying it through the heap.
 	 */
 	public void transferTo(File dest) throws IOException, IllegalStateException {
-		throw new UnsupportedOperationException("not possible.");
+		if (!isAvailable()) {
+			throw new IllegalStateException("File has already been moved or was forwarded to a sink - cannot be transferred");
+		}
+		if (dest.exists() && !dest.delete()) {
+			throw new IOException("Destination file [" + dest.getAbsolutePath() + "] already exists and could not be deleted");
+		}
+		try {
+			this.fileItem.write(dest);
+			if (logger.isDebugEnabled()) {
+				String action = "transferred";
+				if (!this.fileItem.isInMemory()) {
+					action = isAvailable() ? "copied" : "moved";
+				}
+				logger.debug("Multipart file '" + getName() + "' with original filename [" + getOriginalFilename() + "], stored " + getStorageDescription() + ": " + action + " to [" + dest.getAbsolutePath() + "]");
+			}
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			logger.error("Could not transfer to file", ex);
+			throw new IOException("Could not transfer to file: " + ex.getMessage());
+		}
 	}
 
 	/**
-	 * Determine whether the multipart content is still available. Always true.
+	 * Determine whether the multipart content is still available.
+	 * If a temporary file has been moved, the content is no longer available.
 	 */
 	protected boolean isAvailable() {
+		if (this.fileItem instanceof GFileItem) {
+			return ((GFileItem) this.fileItem).isAvailable();
+		}
 		return true;
 	}
 
+	/**
+	 * Return the digest of the content computed with the given algorithm while it was received.
+	 *
+	 * @param algorithm the name of the algorithm, as configured
+	 * @return the digest, or <code>null</code> if not computed
+	 * @see GFileItemFactory#setDigestAlgorithms
+	 */
+	public byte[] getDigest(String algorithm) {
+		if (this.fileItem instanceof GFileItem) {
+			return ((GFileItem) this.fileItem).getDigest(algorithm);
+		}
+		return null;
+	}
+
+	/**
+	 * Return the result of the sink the content was forwarded to while it was received, e.g. the written file.
+	 * The content of such a file cannot be read from this multipart file.
+	 *
+	 * @return the result, or <code>null</code> if the content was not forwarded to a sink
+	 * @see GFileItemFactory#setPartSinks
+	 */
+	public Object getSinkResult() {
+		if (this.fileItem instanceof GFileItem) {
+			return ((GFileItem) this.fileItem).getSinkResult();
+		}
+		return null;
+	}
+
+	/**
+	 * Return the digest of the content computed with the given algorithm, as a lower case hexadecimal string.
+	 *
+	 * @param algorithm the name of the algorithm, as configured
+	 * @return the hexadecimal digest, or <code>null</code> if not computed
+	 */
+	public String getDigestHex(String algorithm) {
+		byte[] digest = getDigest(algorithm);
+		if (digest == null) {
+			return null;
+		}
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = Character.forDigit((digest[i] >> 4) & 0xF, 16);
+			hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Return the result of the given part processor on this file, waiting for the processing to complete.
+	 *
+	 * @param name the name of the processor
+	 * @return the result, or <code>null</code> if there is no such processor
+	 * @throws IOException if the processor failed, or if interrupted while waiting
+	 * @see GFileItemFactory#setPartProcessors
+	 */
+	public Object getProcessingResult(String name) throws IOException {
+		GPartProcessing processing = getProcessing();
+		return (processing != null ? processing.getResult(name) : null);
+	}
+
+	/**
+	 * Return the results of the part processors which succeeded on this file, waiting for the processing to
+	 * complete.
+	 *
+	 * @return the map of processor name to result, empty if the file was not processed
+	 * @throws IOException if interrupted while waiting
+	 */
+	public Map<String, Object> getProcessingResults() throws IOException {
+		GPartProcessing processing = getProcessing();
+		return (processing != null ? processing.getResults() : Collections.<String, Object>emptyMap());
+	}
+
+	private GPartProcessing getProcessing() {
+		if (this.fileItem instanceof GFileItem) {
+			return ((GFileItem) this.fileItem).getProcessing();
+		}
+		return null;
+	}
+
 	/**
 	 * Return a description for the storage location of the multipart content.
-	 * In this implementation, it returns "in memory" always.
+	 * Returns "in memory" unless the content is held in a {@link GStorage} located elsewhere.
 	 */
 	public String getStorageDescription() {
+		if (this.fileItem instanceof GFileItem) {
+			return ((GFileItem) this.fileItem).getStorageDescription();
+		}
 		return "in memory";
 	}
 
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItem;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.support.DefaultMultipartHttpServletRequest;
+
+/**
+ * <p>Multipart request created by {@link GMultipartResolver}, keeping track of every file item created
+ * while parsing it (file parts and form fields alike), so that
+ * {@link GMultipartResolver#cleanupMultipart cleanupMultipart} can release all of them.
+ *
+ * @author kernel164
+ * @see GFileUploadSupport#cleanupFileItems(List)
+ */
+public class GMultipartHttpServletRequest extends DefaultMultipartHttpServletRequest {
+
+	private List<FileItem> fileItems;
+
+	/**
+	 * Create a new GMultipartHttpServletRequest with the given parsing result.
+	 *
+	 * @param request the servlet request to wrap
+	 * @param mpFiles a map of the multipart files
+	 * @param mpParams a map of the parameters to expose, with Strings as keys and String arrays as values
+	 * @param mpParamContentTypes a map of the content types of the parameters
+	 * @param fileItems all the file items created while parsing the request
+	 */
+	public GMultipartHttpServletRequest(HttpServletRequest request, MultiValueMap<String, MultipartFile> mpFiles,
+			Map<String, String[]> mpParams, Map<String, String> mpParamContentTypes, List<FileItem> fileItems) {
+		super(request, mpFiles, mpParams, mpParamContentTypes);
+		this.fileItems = fileItems;
+	}
+
+	/**
+	 * Create a new GMultipartHttpServletRequest which is parsed later on.
+	 *
+	 * @param request the servlet request to wrap
+	 */
+	protected GMultipartHttpServletRequest(HttpServletRequest request) {
+		super(request);
+	}
+
+	/**
+	 * Set the file items created while parsing the request.
+	 */
+	protected final void setFileItems(List<FileItem> fileItems) {
+		this.fileItems = fileItems;
+	}
+
+	/**
+	 * Return all the file items created while parsing the request, or an empty list if the request has not
+	 * been parsed (yet).
+	 */
+	public List<FileItem> getFileItems() {
+		return (this.fileItems != null ? this.fileItems : Collections.<FileItem>emptyList());
+	}
+}
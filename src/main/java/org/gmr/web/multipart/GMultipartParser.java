@@ -0,0 +1,344 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.fileupload.MultipartStream;
+
+/**
+ * <p>A multipart/form-data parser working directly on the bytes of the request body, as an alternative to
+ * the commons-fileupload <code>MultipartStream</code>.
+ *
+ * <p>The parser is a state machine fed with chunks of the body, either pushed through {@link #feed} or pulled
+ * from an input stream by {@link #parse}. Boundaries are searched with the Boyer-Moore-Horspool algorithm,
+ * using a skip table computed once per boundary, and part content is written from a single reused buffer
+ * straight to the output stream given by the {@link Handler}. The headers of all parts are read into a single
+ * reused {@link GPartHeaders} instance, decoded only on demand.
+ *
+ * <p>Nested multipart/mixed parts are not expanded: they are handed to the handler as a single part.
+ *
+ * <p>A parser is not thread safe and reads a single request.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setNativeParser
+ */
+public class GMultipartParser {
+
+	/**
+	 * Receives the parts read by the parser.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called when the headers of a part have been read.
+		 *
+		 * @param headers the headers of the part, only valid until this method returns.
+		 * @return the stream to write the content of the part to, or <code>null</code> to skip the part.
+		 * @throws IOException if the part could not be handled.
+		 */
+		OutputStream startPart(GPartHeaders headers) throws IOException;
+
+		/**
+		 * Called when the content of the part has been fully written to its stream.
+		 *
+		 * @throws IOException if the part could not be handled.
+		 */
+		void endPart() throws IOException;
+	}
+
+	/** Default size of the read buffer, in bytes. */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/** Maximum size of the header block of a single part, in bytes. */
+	public static final int HEADER_PART_SIZE_MAX = MultipartStream.HEADER_PART_SIZE_MAX;
+
+	private static final int PREAMBLE = 0;
+
+	private static final int BOUNDARY = 1;
+
+	private static final int HEADERS = 2;
+
+	private static final int BODY = 3;
+
+	private static final int EPILOGUE = 4;
+
+	private static final byte CR = 0x0D;
+
+	private static final byte LF = 0x0A;
+
+	private static final byte DASH = 0x2D;
+
+	private final Handler handler;
+
+	/** CRLF, two dashes and the boundary. */
+	private final byte[] delimiter;
+
+	private final int[] skip = new int[256];
+
+	private final byte[] buffer;
+
+	private final GPartHeaders headers;
+
+	private int head;
+
+	private int tail;
+
+	private int state = PREAMBLE;
+
+	private OutputStream out;
+
+	/** Number of CRLF bytes matched at the end of the header block so far. */
+	private int headerEnd;
+
+	private GPartLimiter partLimiter;
+
+	/**
+	 * Create a new parser with a read buffer of the default size.
+	 *
+	 * @param boundary the boundary, from the content type of the request.
+	 * @param headerCharset the charset of the part headers.
+	 * @param handler the handler receiving the parts.
+	 */
+	public GMultipartParser(byte[] boundary, Charset headerCharset, Handler handler) {
+		this(boundary, headerCharset, handler, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Create a new parser.
+	 *
+	 * @param boundary the boundary, from the content type of the request.
+	 * @param headerCharset the charset of the part headers.
+	 * @param handler the handler receiving the parts.
+	 * @param bufferSize the size of the read buffer, in bytes, at least twice the delimiter length.
+	 */
+	public GMultipartParser(byte[] boundary, Charset headerCharset, Handler handler, int bufferSize) {
+		if (boundary == null || boundary.length == 0) {
+			throw new IllegalArgumentException("boundary must not be empty");
+		}
+		this.handler = handler;
+		this.headers = new GPartHeaders(headerCharset);
+		this.delimiter = new byte[boundary.length + 4];
+		this.delimiter[0] = CR;
+		this.delimiter[1] = LF;
+		this.delimiter[2] = DASH;
+		this.delimiter[3] = DASH;
+		System.arraycopy(boundary, 0, this.delimiter, 4, boundary.length);
+		this.buffer = new byte[Math.max(bufferSize, this.delimiter.length * 2)];
+
+		int last = this.delimiter.length - 1;
+		for (int i = 0; i < skip.length; i++) {
+			skip[i] = this.delimiter.length;
+		}
+		for (int i = 0; i < last; i++) {
+			skip[this.delimiter[i] & 0xFF] = last - i;
+		}
+
+		// the first boundary may start the body, without a preceding CRLF
+		buffer[0] = CR;
+		buffer[1] = LF;
+		tail = 2;
+	}
+
+	/**
+	 * Sets the limiter counting the parts and header bytes, checked as the headers are read.
+	 *
+	 * @param partLimiter the part limiter, or <code>null</code> for no limits.
+	 */
+	public void setPartLimiter(GPartLimiter partLimiter) {
+		this.partLimiter = partLimiter;
+	}
+
+	/**
+	 * Reads the whole given stream, then checks the body is complete.
+	 *
+	 * @param in the request body.
+	 * @throws MultipartStream.MalformedStreamException if the body is not valid multipart content.
+	 * @throws IOException if the body could not be read, or a part could not be handled.
+	 */
+	public void parse(InputStream in) throws IOException {
+		int read;
+		while ((read = in.read(buffer, tail, buffer.length - tail)) != -1) {
+			tail += read;
+			process();
+		}
+		finish();
+	}
+
+	/**
+	 * Pushes the next chunk of the body.
+	 *
+	 * @param b the bytes.
+	 * @param off the offset of the chunk.
+	 * @param len the length of the chunk.
+	 * @throws MultipartStream.MalformedStreamException if the body is not valid multipart content.
+	 * @throws IOException if a part could not be handled.
+	 */
+	public void feed(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int count = Math.min(len, buffer.length - tail);
+			System.arraycopy(b, off, buffer, tail, count);
+			tail += count;
+			off += count;
+			len -= count;
+			process();
+		}
+	}
+
+	/**
+	 * Checks the body read so far is complete, i.e. ends with the closing boundary.
+	 *
+	 * @throws MultipartStream.MalformedStreamException if the body is incomplete.
+	 */
+	public void finish() throws IOException {
+		if (state != EPILOGUE) {
+			throw new MultipartStream.MalformedStreamException("Stream ended unexpectedly");
+		}
+	}
+
+	/**
+	 * Returns whether the closing boundary has been read.
+	 *
+	 * @return <code>true</code> if the body is complete.
+	 */
+	public boolean isComplete() {
+		return state == EPILOGUE;
+	}
+
+	private void process() throws IOException {
+		boolean progress = true;
+		while (progress && head < tail) {
+			switch (state) {
+			case PREAMBLE:
+			case BODY:
+				progress = readBody();
+				break;
+			case BOUNDARY:
+				progress = readBoundary();
+				break;
+			case HEADERS:
+				progress = readHeaders();
+				break;
+			default:
+				head = tail;
+			}
+		}
+		if (head == tail) {
+			head = 0;
+			tail = 0;
+		} else if (head > 0) {
+			System.arraycopy(buffer, head, buffer, 0, tail - head);
+			tail -= head;
+			head = 0;
+		}
+	}
+
+	private boolean readBody() throws IOException {
+		int index = indexOfDelimiter();
+		int end = (index >= 0 ? index : Math.max(head, tail - delimiter.length + 1));
+		if (out != null && end > head) {
+			out.write(buffer, head, end - head);
+		}
+		if (index < 0) {
+			head = end;
+			return false;
+		}
+		if (state == BODY) {
+			out = null;
+			handler.endPart();
+		}
+		head = index + delimiter.length;
+		state = BOUNDARY;
+		return true;
+	}
+
+	private boolean readBoundary() throws IOException {
+		if (tail - head < 2) {
+			return false;
+		}
+		byte first = buffer[head];
+		byte second = buffer[head + 1];
+		head += 2;
+		if (first == CR && second == LF) {
+			headers.reset();
+			// the CRLF ending the boundary line counts towards the blank line ending the headers
+			headerEnd = 2;
+			state = HEADERS;
+		} else if (first == DASH && second == DASH) {
+			state = EPILOGUE;
+		} else {
+			throw new MultipartStream.MalformedStreamException("Unexpected characters follow a boundary");
+		}
+		return true;
+	}
+
+	private boolean readHeaders() throws IOException {
+		int pos = head;
+		while (pos < tail && headerEnd < 4) {
+			byte b = buffer[pos++];
+			if (b == ((headerEnd & 1) == 0 ? CR : LF)) {
+				headerEnd++;
+			} else {
+				headerEnd = (b == CR ? 1 : 0);
+			}
+		}
+		int headerSize = headers.append(buffer, head, pos - head);
+		if (headerSize > HEADER_PART_SIZE_MAX) {
+			throw new MultipartStream.MalformedStreamException("Header section has more than " + HEADER_PART_SIZE_MAX
+					+ " bytes (maybe it is not properly terminated)");
+		}
+		head = pos;
+		if (headerEnd < 4) {
+			if (partLimiter != null) {
+				partLimiter.checkHeaderSize(headerSize);
+			}
+			return false;
+		}
+		if (partLimiter != null) {
+			partLimiter.partStarted(headerSize);
+		}
+		headers.parse();
+		out = handler.startPart(headers);
+		state = BODY;
+		return true;
+	}
+
+	/**
+	 * Searches the delimiter in the unread bytes of the buffer, with the Boyer-Moore-Horspool algorithm.
+	 */
+	private int indexOfDelimiter() {
+		int last = delimiter.length - 1;
+		int pos = head;
+		while (pos + last < tail) {
+			byte b = buffer[pos + last];
+			if (b == delimiter[last]) {
+				int i = last - 1;
+				while (i >= 0 && buffer[pos + i] == delimiter[i]) {
+					i--;
+				}
+				if (i < 0) {
+					return pos;
+				}
+			}
+			pos += skip[b & 0xFF];
+		}
+		return -1;
+	}
+}
@@ -18,14 +18,19 @@ package org.gmr.web.multipart;
 
 import org.apache.commons.fileupload.*;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.LimitedInputStream;
 import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartException;
 import org.springframework.web.multipart.MultipartHttpServletRequest;
 import org.springframework.web.multipart.MultipartResolver;
-import org.springframework.web.multipart.support.DefaultMultipartHttpServletRequest;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>This src is modified from Spring 3.0 CommonsMultipartResolver.java and renamed to GMultipartResolver
@@ -45,8 +50,21 @@ import java.util.List;
  * @author kernel164
  */
 public class GMultipartResolver extends GFileUploadSupport implements MultipartResolver {
+
+	/**
+	 * Name of the request attribute holding a multipart request resolved before the dispatch, e.g. by a
+	 * {@link GMultipartFeed}. {@link #resolveMultipart} returns it instead of parsing the body again.
+	 */
+	public static final String MULTIPART_REQUEST_ATTRIBUTE = GMultipartResolver.class.getName() + ".MULTIPART_REQUEST";
+
 	private boolean resolveLazily = false;
 
+	private boolean streaming = false;
+
+	private boolean resolveIncrementally = false;
+
+	private boolean nativeParser = false;
+
 	/**
 	 * Set whether to resolve the multipart request lazily at the time of file or parameter access.
 	 * <p>
@@ -59,6 +77,44 @@ public class GMultipartResolver extends GFileUploadSupport implements MultipartR
 		this.resolveLazily = resolveLazily;
 	}
 
+	/**
+	 * Set whether to stream the parts of the multipart request instead of buffering them.
+	 * <p>
+	 * Default is "false", buffering every part before the handler is invoked. Switch this to "true" to
+	 * resolve requests into a {@link GStreamingMultipartHttpServletRequest}, which hands out file parts one
+	 * at a time as one-shot streams in arrival order, so that uploads of any size pass through with
+	 * constant memory. Form fields are still collected into the parameter map. Takes precedence over
+	 * "resolveLazily".
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Set whether to read the parts of the multipart request on demand, at the time of file or parameter access.
+	 * <p>
+	 * Default is "false". Switch this to "true" to resolve requests into a
+	 * {@link GIncrementalMultipartHttpServletRequest}, which reads the request only up to the first part of the
+	 * requested name, leaving the rest of the body unread until it is needed. Parse exceptions are thrown at the
+	 * time of the access reading the faulty part. Takes precedence over "resolveLazily"; "streaming" takes
+	 * precedence over it. Parts are always read with the commons-fileupload parser.
+	 */
+	public void setResolveIncrementally(boolean resolveIncrementally) {
+		this.resolveIncrementally = resolveIncrementally;
+	}
+
+	/**
+	 * Set whether to parse requests with the native {@link GMultipartParser} instead of the commons-fileupload
+	 * <code>MultipartStream</code>.
+	 * <p>
+	 * Default is "false". Switch this to "true" to scan boundaries with a precomputed skip table over a single
+	 * reused buffer, and read part headers without allocating per header. The resulting files and parameters are
+	 * the same, except that nested multipart/mixed parts are not expanded. Does not apply to "streaming".
+	 */
+	public void setNativeParser(boolean nativeParser) {
+		this.nativeParser = nativeParser;
+	}
+
 	/**
 	 * Initialize the underlying
 	 * <code>org.apache.commons.fileupload.servlet.ServletFileUpload</code> instance. Can be
@@ -80,24 +136,29 @@ public class GMultipartResolver extends GFileUploadSupport implements MultipartR
 	}
 
 	/**
-	 * Resolves multipart request.
+	 * Resolves multipart request. A request already resolved under {@link #MULTIPART_REQUEST_ATTRIBUTE} is
+	 * returned as is, and the attribute removed.
 	 */
-	public MultipartHttpServletRequest resolveMultipart(final HttpServletRequest request) throws MultipartException {
-		if (this.resolveLazily) {
-			return new DefaultMultipartHttpServletRequest(request) {
-				@Override
-				protected void initializeMultipart() {
-					MultipartParsingResult parsingResult = parseRequest(request);
-					setMultipartFiles(parsingResult.getMultipartFiles());
-					setMultipartParameters(parsingResult.getMultipartParameters());
-				}
-			};
+	public MultipartHttpServletRequest resolveMultipart(HttpServletRequest request) throws MultipartException {
+		Object resolved = request.getAttribute(MULTIPART_REQUEST_ATTRIBUTE);
+		if (resolved instanceof MultipartHttpServletRequest) {
+			request.removeAttribute(MULTIPART_REQUEST_ATTRIBUTE);
+			return (MultipartHttpServletRequest) resolved;
+		}
+		checkContentLength(request);
+		if (this.streaming) {
+			return parseStreamingRequest(request);
+		} else if (this.resolveIncrementally) {
+			return parseIncrementalRequest(request);
+		} else if (this.resolveLazily) {
+			return new GLazyMultipartHttpServletRequest(request, this);
 		} else {
 			MultipartParsingResult parsingResult = parseRequest(request);
 
-			return new DefaultMultipartHttpServletRequest(request, 
+			return new GMultipartHttpServletRequest(request, 
 					parsingResult.getMultipartFiles(), 
-					parsingResult.getMultipartParameters(), parsingResult.getMultipartParameterContentTypes());
+					parsingResult.getMultipartParameters(), parsingResult.getMultipartParameterContentTypes(),
+					parsingResult.getFileItems());
 		}
 	}
 
@@ -108,20 +169,231 @@ public class GMultipartResolver extends GFileUploadSupport implements MultipartR
 	 * @return the parsing result
 	 * @throws MultipartException if multipart resolution failed.
 	 */
-	@SuppressWarnings("unchecked")
 	protected MultipartParsingResult parseRequest(HttpServletRequest request) throws MultipartException {
 		String encoding = determineEncoding(request);
+		GMetricsListener metricsListener = getMetricsListener();
+		if (metricsListener == GMetricsListener.NONE) {
+			return doParseRequest(request, encoding);
+		}
+		long start = System.nanoTime();
+		try {
+			MultipartParsingResult parsingResult = doParseRequest(request, encoding);
+			metricsListener.requestParsed(parsingResult.getFileItems().size(), request.getContentLength(),
+					System.nanoTime() - start);
+			return parsingResult;
+		} catch (MaxUploadSizeExceededException ex) {
+			metricsListener.sizeLimitExceeded(ex.getMaxUploadSize());
+			throw ex;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private MultipartParsingResult doParseRequest(HttpServletRequest request, String encoding) throws MultipartException {
+		if (this.nativeParser) {
+			return parseNativeRequest(request, encoding);
+		}
 		FileUpload fileUpload = prepareFileUpload(encoding);
+		List<FileItem> fileItems = new ArrayList<FileItem>();
 		try {
-			List<FileItem> fileItems = ((ServletFileUpload) fileUpload).parseRequest(request);
+			// read the parts one by one rather than through parseRequest, to count them as they come
+			FileItemIterator itemIterator = ((ServletFileUpload) fileUpload).getItemIterator(request);
+			GPartLimiter partLimiter = newPartLimiter();
+			while (itemIterator.hasNext()) {
+				readFileItem(itemIterator.next(), partLimiter, fileItems);
+			}
 			return parseFileItems(fileItems, encoding);
-		} catch (FileUploadBase.SizeLimitExceededException ex) {
-			throw new MaxUploadSizeExceededException(fileUpload.getSizeMax(), ex);
 		} catch (FileUploadException ex) {
+			cleanupFileItems(fileItems);
+			throw toMultipartException(ex);
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			cleanupFileItems(fileItems);
+			throw toMultipartException(ex.getCause());
+		} catch (IOException ex) {
+			cleanupFileItems(fileItems);
+			throw new MultipartException("Could not read multipart servlet request", ex);
+		} catch (RuntimeException ex) {
+			cleanupFileItems(fileItems);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Parse the given servlet request with the native {@link GMultipartParser}.
+	 *
+	 * @param request the request to parse
+	 * @param encoding the encoding to use for part headers and form fields
+	 * @return the parsing result
+	 * @throws MultipartException if multipart resolution failed.
+	 */
+	protected MultipartParsingResult parseNativeRequest(HttpServletRequest request, String encoding) throws MultipartException {
+		// a declared content length is checked by resolveMultipart; this limits undeclared or lying ones
+		final long sizeMax = getFileUpload().getSizeMax();
+		byte[] boundary = getBoundary(request.getContentType());
+		if (boundary == null) {
+			throw new MultipartException("Could not parse multipart servlet request: no multipart boundary was found");
+		}
+		GFileItemPartHandler handler = new GFileItemPartHandler(getFileItemFactory());
+		try {
+			InputStream in = request.getInputStream();
+			if (sizeMax >= 0) {
+				in = new LimitedInputStream(in, sizeMax) {
+					@Override
+					protected void raiseError(long pSizeMax, long pCount) throws IOException {
+						throw new FileUploadBase.FileUploadIOException(new FileUploadBase.SizeLimitExceededException(
+								"the request was rejected because its size (" + pCount + ") exceeds the configured maximum ("
+										+ pSizeMax + ")", pCount, pSizeMax));
+					}
+				};
+			}
+			GMultipartParser parser = new GMultipartParser(boundary, getCharset(encoding), handler);
+			parser.setPartLimiter(newPartLimiter());
+			parser.parse(in);
+			return parseFileItems(handler.getFileItems(), encoding);
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			cleanupFileItems(handler.getFileItems());
+			throw toMultipartException(ex.getCause());
+		} catch (IOException ex) {
+			cleanupFileItems(handler.getFileItems());
+			throw new MultipartException("Could not parse multipart servlet request", ex);
+		} catch (RuntimeException ex) {
+			cleanupFileItems(handler.getFileItems());
+			throw ex;
+		}
+	}
+
+	/**
+	 * Open the given servlet request for parsing its body as the caller pushes it, e.g. from the callbacks of a
+	 * Servlet 3.1 <code>ReadListener</code>, reading nothing yet. The body is parsed with the native
+	 * {@link GMultipartParser}, whatever the "nativeParser" setting.
+	 *
+	 * @param request the request to parse
+	 * @return the feed to push the body to
+	 * @throws MultipartException if the request is rejected up front, e.g. for its content length.
+	 * @see GMultipartFeed
+	 */
+	public GMultipartFeed openFeed(HttpServletRequest request) throws MultipartException {
+		checkContentLength(request);
+		byte[] boundary = getBoundary(request.getContentType());
+		if (boundary == null) {
+			throw new MultipartException("Could not parse multipart servlet request: no multipart boundary was found");
+		}
+		try {
+			return new GMultipartFeed(request, this, boundary, determineEncoding(request));
+		} catch (UnsupportedEncodingException ex) {
 			throw new MultipartException("Could not parse multipart servlet request", ex);
 		}
 	}
 
+	/**
+	 * Extract the boundary from the given multipart content type.
+	 *
+	 * @param contentType the content type of the request
+	 * @return the boundary, or <code>null</code> if none is specified
+	 */
+	@SuppressWarnings("unchecked")
+	protected byte[] getBoundary(String contentType) {
+		ParameterParser parser = new ParameterParser();
+		parser.setLowerCaseNames(true);
+		Map<String, String> params = parser.parse(contentType, new char[] { ';', ',' });
+		String boundary = params.get("boundary");
+		if (boundary == null || boundary.length() == 0) {
+			return null;
+		}
+		try {
+			return boundary.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException ex) {
+			return boundary.getBytes();
+		}
+	}
+
+	/**
+	 * Open the given servlet request for streaming, reading its form fields up to the first file part.
+	 *
+	 * @param request the request to parse
+	 * @return the streaming multipart request
+	 * @throws MultipartException if multipart resolution failed.
+	 */
+	protected GStreamingMultipartHttpServletRequest parseStreamingRequest(HttpServletRequest request) throws MultipartException {
+		String encoding = determineEncoding(request);
+		FileUpload fileUpload = prepareFileUpload(encoding);
+		try {
+			FileItemIterator itemIterator = ((ServletFileUpload) fileUpload).getItemIterator(request);
+			return new GStreamingMultipartHttpServletRequest(request, itemIterator, encoding, newPartLimiter());
+		} catch (MaxUploadSizeExceededException ex) {
+			getMetricsListener().sizeLimitExceeded(ex.getMaxUploadSize());
+			throw ex;
+		} catch (FileUploadException ex) {
+			throw reportSizeLimit(toMultipartException(ex));
+		} catch (IOException ex) {
+			throw new MultipartException("Could not read multipart servlet request", ex);
+		}
+	}
+
+	/**
+	 * Open the given servlet request for publishing its parts and their content as subscribers demand them,
+	 * reading nothing yet. Limits on the size of the request and of each file, and on the parts, apply as in
+	 * streaming mode.
+	 *
+	 * @param request the request to parse
+	 * @return the publisher of the parts of the request
+	 * @throws MultipartException if the request is rejected up front, e.g. for its content length.
+	 * @see GPartPublisher
+	 */
+	public GPartPublisher publishParts(HttpServletRequest request) throws MultipartException {
+		checkContentLength(request);
+		FileUpload fileUpload = prepareFileUpload(determineEncoding(request));
+		try {
+			FileItemIterator itemIterator = ((ServletFileUpload) fileUpload).getItemIterator(request);
+			return new GPartPublisher(itemIterator, newPartLimiter(), GMultipartParser.DEFAULT_BUFFER_SIZE);
+		} catch (FileUploadException ex) {
+			throw reportSizeLimit(toMultipartException(ex));
+		} catch (IOException ex) {
+			throw new MultipartException("Could not read multipart servlet request", ex);
+		}
+	}
+
+	/**
+	 * Open the given servlet request for reading its parts on demand, reading nothing yet.
+	 *
+	 * @param request the request to parse
+	 * @return the incremental multipart request
+	 * @throws MultipartException if the request is rejected up front, e.g. for its content length.
+	 */
+	protected GIncrementalMultipartHttpServletRequest parseIncrementalRequest(HttpServletRequest request) throws MultipartException {
+		String encoding = determineEncoding(request);
+		FileUpload fileUpload = prepareFileUpload(encoding);
+		try {
+			FileItemIterator itemIterator = ((ServletFileUpload) fileUpload).getItemIterator(request);
+			return new GIncrementalMultipartHttpServletRequest(request, this, itemIterator, encoding);
+		} catch (FileUploadException ex) {
+			throw reportSizeLimit(toMultipartException(ex));
+		} catch (IOException ex) {
+			throw new MultipartException("Could not read multipart servlet request", ex);
+		}
+	}
+
+	private MultipartException reportSizeLimit(MultipartException ex) {
+		if (ex instanceof MaxUploadSizeExceededException) {
+			getMetricsListener().sizeLimitExceeded(((MaxUploadSizeExceededException) ex).getMaxUploadSize());
+		}
+		return ex;
+	}
+
+	/**
+	 * Reject the given request if its declared content length exceeds the maximum upload size, before reading
+	 * anything of its body, whatever the resolution mode.
+	 *
+	 * @param request the request to check
+	 * @throws MaxUploadSizeExceededException if the content length exceeds the maximum upload size
+	 */
+	protected void checkContentLength(HttpServletRequest request) throws MaxUploadSizeExceededException {
+		long sizeMax = getFileUpload().getSizeMax();
+		if (sizeMax >= 0 && request.getContentLength() > sizeMax) {
+			getMetricsListener().sizeLimitExceeded(sizeMax);
+			throw new MaxUploadSizeExceededException(sizeMax);
+		}
+	}
+
 	/**
 	 * Determine the encoding for the given request. Can be overridden in subclasses.
 	 * <p>
@@ -142,12 +414,17 @@ public class GMultipartResolver extends GFileUploadSupport implements MultipartR
 	}
 
 	/**
-	 * Clean up multi part.
+	 * Clean up multi part, deleting every file item created while parsing the request, form fields included.
+	 * A lazily resolved request which has not been parsed is left unparsed.
 	 */
 	public void cleanupMultipart(MultipartHttpServletRequest request) {
 		if (request != null) {
 			try {
-				cleanupFileItems(request.getFileMap().values());
+				if (request instanceof GMultipartHttpServletRequest) {
+					cleanupFileItems(((GMultipartHttpServletRequest) request).getFileItems());
+				} else {
+					cleanupFileItems(request.getFileMap().values());
+				}
 			} catch (Throwable ex) {
 				logger.warn("Failed to perform multipart cleanup for servlet request", ex);
 			}
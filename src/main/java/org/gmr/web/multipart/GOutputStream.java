@@ -16,24 +16,30 @@
  */
 package org.gmr.web.multipart;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.io.output.ThresholdingOutputStream;
 
 /**
  * <p> Important Note: This src is modified version of {@link org.apache.commons.io.output.DeferredFileOutputStream}
  * to make it work in GAE and spring.
  *
- *<p> An output stream which will retain data in memory (always) as GAE doesn't suport file handling.
- * If the stream reaches the threshold , the UnsupportedOperationException will be thrown.
- * To fix, try changing the thresold limit.
+ *<p> An output stream which will retain data in the {@link GStorage} it was created with.
+ * If the stream reaches the threshold while the storage is held in memory, the data is moved to a new storage
+ * created by the spill storage factory (typically a temporary file), and the memory is released.
+ * Without a spill storage factory, the UnsupportedOperationException will be thrown instead.
  *
  * <p>
  * This class originated in FileUpload processing. In this use case, you do not know in advance the
  * size of the file being uploaded.
- * Anyways, the file is stored in memory (for speed and GAE doesn't support file handling.)
+ *
+ * <p>
+ * By default the data is kept in a {@link GChunkedBuffer}, so growing the stream never copies the data written so far.
  *
  * @author kernel164
  * @author <a href="mailto:martinc@apache.org">Martin Cooper</a>
@@ -44,15 +50,85 @@ public class GOutputStream extends ThresholdingOutputStream {
 	// ----------------------------------------------------------- Data members
 
 	/**
-	 * The output stream to which data will be written prior to the theshold being reached.
+	 * The storage to which data will be written.
+	 */
+	private GStorage storage;
+
+	/**
+	 * The factory for the storage taking over the data when the threshold is reached, may be <code>null</code>.
+	 */
+	private final GStorageFactory spillStorageFactory;
+
+	/**
+	 * The budget charged for the data held in memory, may be <code>null</code>.
+	 */
+	private GMemoryBudget memoryBudget;
+
+	/**
+	 * The number of bytes taken from the memory budget.
+	 */
+	private long reserved;
+
+	/**
+	 * The listener notified when the data has been fully written.
+	 */
+	private GMetricsListener metricsListener = GMetricsListener.NONE;
+
+	/**
+	 * The time the listener was set, in nanoseconds; 0 if not measured.
+	 */
+	private long createdAt;
+
+	/**
+	 * The time the first byte was written, in nanoseconds; 0 if not measured (yet).
+	 */
+	private long firstByteAt;
+
+	/**
+	 * The growth count of the memory storage replaced by the spill storage.
 	 */
-	private final ByteArrayOutputStream memoryOutputStream;
+	private int spilledGrowthCount;
+
+	/**
+	 * True when the data has been moved to the spill storage.
+	 */
+	private boolean spilled;
+
+	/**
+	 * The maximum number of bytes which may be written, or -1 for no limit.
+	 */
+	private long sizeLimit = -1;
+
+	/**
+	 * The field name and file name of the part, reported when the size limit is exceeded.
+	 */
+	private String fieldName, fileName;
+
+	/**
+	 * The digester updated with the data as it is written, may be <code>null</code>.
+	 */
+	private GDigester digester;
+
+	/**
+	 * The store sharing the data with identical data once fully written, may be <code>null</code>.
+	 */
+	private GDedupStore dedupStore;
+
+	/**
+	 * The action to run once the data has been fully written, may be <code>null</code>.
+	 */
+	private Runnable closeAction;
 
 	/**
 	 * True when close() has been called successfully.
 	 */
 	private boolean closed = false;
 
+	/**
+	 * True when a write has failed, leaving the data partial.
+	 */
+	private boolean failed = false;
+
 	// ----------------------------------------------------------- Constructors
 
 	/**
@@ -60,11 +136,36 @@ public class GOutputStream extends ThresholdingOutputStream {
 	 * UnsupportedOperationException if the specified threshold is reached.
 	 *
 	 * @param threshold The number of bytes at which to trigger an event.
-	 * @param outputFile The file to which data is saved beyond the threshold.
 	 */
 	public GOutputStream(long threshold) {
-		super((int) threshold);
-		memoryOutputStream = new ByteArrayOutputStream();
+		this(threshold, new GChunkedBuffer());
+	}
+
+	/**
+	 * Constructs an instance of this class writing to the given storage, which will trigger throw
+	 * UnsupportedOperationException if the specified threshold is reached while the storage is held in memory.
+	 *
+	 * @param threshold The number of bytes at which to trigger an event.
+	 * @param storage The storage to which data is written.
+	 */
+	public GOutputStream(long threshold, GStorage storage) {
+		this(threshold, storage, null);
+	}
+
+	/**
+	 * Constructs an instance of this class writing to the given storage, which will move the data to a storage
+	 * created by the given spill storage factory if the specified threshold is reached while the storage is
+	 * held in memory.
+	 *
+	 * @param threshold The number of bytes at which to trigger an event.
+	 * @param storage The storage to which data is written.
+	 * @param spillStorageFactory The factory for the storage taking over the data, or <code>null</code> to throw
+	 * UnsupportedOperationException instead.
+	 */
+	public GOutputStream(long threshold, GStorage storage, GStorageFactory spillStorageFactory) {
+		super((int) Math.min(threshold, Integer.MAX_VALUE));
+		this.storage = storage;
+		this.spillStorageFactory = spillStorageFactory;
 	}
 
 	// --------------------------------------- ThresholdingOutputStream methods
@@ -79,16 +180,185 @@ public class GOutputStream extends ThresholdingOutputStream {
 	 */
 	@Override
 	protected OutputStream getStream() throws IOException {
-		return memoryOutputStream;
+		return storage;
+	}
+
+	/**
+	 * Writes the specified byte, updating the digests if any.
+	 *
+	 * @param b The byte to be written.
+	 *
+	 * @exception IOException if an error occurs.
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		boolean written = false;
+		try {
+			super.write(b);
+			written = true;
+		} finally {
+			failed |= !written;
+		}
+		if (digester != null) {
+			digester.update(b);
+		}
+	}
+
+	/**
+	 * Writes <code>b.length</code> bytes from the specified byte array, updating the digests if any.
+	 *
+	 * @param b The array of bytes to be written.
+	 *
+	 * @exception IOException if an error occurs.
+	 */
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	/**
+	 * Writes <code>len</code> bytes from the specified byte array starting at offset <code>off</code>, updating
+	 * the digests if any.
+	 *
+	 * @param b The byte array from which the data will be written.
+	 * @param off The start offset in the byte array.
+	 * @param len The number of bytes to write.
+	 *
+	 * @exception IOException if an error occurs.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		boolean written = false;
+		try {
+			super.write(b, off, len);
+			written = true;
+		} finally {
+			failed |= !written;
+		}
+		if (digester != null) {
+			digester.update(b, off, len);
+		}
+	}
+
+	/**
+	 * Checks the threshold, then charges the memory budget for the bytes about to be written if they will be
+	 * held in memory.
+	 *
+	 * @param count The number of bytes about to be written.
+	 *
+	 * @exception IOException if an error occurs.
+	 */
+	@Override
+	protected void checkThreshold(int count) throws IOException {
+		if (sizeLimit >= 0 && getByteCount() + count > sizeLimit) {
+			FileUploadBase.FileSizeLimitExceededException ex = new FileUploadBase.FileSizeLimitExceededException(
+					"The field " + fieldName + " exceeds its maximum permitted size of " + sizeLimit + " bytes",
+					getByteCount() + count, sizeLimit);
+			ex.setFieldName(fieldName);
+			ex.setFileName(fileName);
+			throw new FileUploadBase.FileUploadIOException(ex);
+		}
+		if (firstByteAt == 0 && createdAt != 0) {
+			firstByteAt = System.nanoTime();
+		}
+		super.checkThreshold(count);
+		if (memoryBudget != null && storage.isInMemory()) {
+			reserve(count);
+		}
 	}
 
 	/**
-	 * Not possible in GAE. Will never reach!!
-	 * If it happens, try changing max upload size setting.
+	 * Moves the data written so far from memory to a storage created by the spill storage factory,
+	 * and releases the memory. Does nothing if the data is not held in memory.
+	 *
+	 * @exception IOException if an error occurs.
 	 */
 	@Override
-	protected void thresholdReached() {
-		throw new UnsupportedOperationException("Not possible in GAE. Will never reach!! Try changing max upload size setting.");
+	protected void thresholdReached() throws IOException {
+		if (storage.isInMemory()) {
+			spill();
+		}
+	}
+
+	/**
+	 * Takes enough bytes from the memory budget to hold the given number of additional bytes, applying the
+	 * budget's policy when it is exhausted. Bytes are taken in chunks to keep contention on the budget low.
+	 */
+	private void reserve(int count) throws IOException {
+		long needed = getByteCount() + count - reserved;
+		if (needed <= 0) {
+			return;
+		}
+		long bytes = Math.max(needed, GChunkedBuffer.DEFAULT_CHUNK_SIZE);
+		if (memoryBudget.tryAcquire(bytes)) {
+			reserved += bytes;
+			return;
+		}
+		switch (memoryBudget.getPolicy()) {
+		case SPILL:
+			if (spillStorageFactory != null) {
+				spill();
+				return;
+			}
+			break;
+		case BLOCK:
+			try {
+				if (memoryBudget.acquire(bytes)) {
+					reserved += bytes;
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for upload memory");
+			}
+			break;
+		default:
+			break;
+		}
+		throw new GMemoryBudgetExceededException(memoryBudget.getCapacity());
+	}
+
+	/**
+	 * Moves the data from memory to the spill storage and gives the memory back to the budget.
+	 */
+	private void spill() throws IOException {
+		if (spillStorageFactory == null) {
+			throw new UnsupportedOperationException("Threshold reached without spill storage. Try changing the size threshold setting.");
+		}
+		GStorage spilled = spillStorageFactory.createStorage();
+		try {
+			storage.writeTo(spilled);
+		} catch (IOException e) {
+			spilled.release();
+			throw e;
+		}
+		spilledGrowthCount += storage.getGrowthCount();
+		storage.release();
+		storage = spilled;
+		this.spilled = true;
+		releaseReserved();
+	}
+
+	/**
+	 * Replaces the storage with the shared storage of the dedup store, giving the memory back to the budget if
+	 * the data was already stored.
+	 */
+	private void share() {
+		GStorage shared = dedupStore.share(digester.finish().get(dedupStore.getAlgorithm()), storage);
+		if (shared != storage) {
+			boolean stored = ((GDedupStore.SharedStorage) shared).shares(storage);
+			storage = shared;
+			if (!stored) {
+				releaseReserved();
+			}
+		}
+	}
+
+	private void releaseReserved() {
+		if (memoryBudget != null) {
+			memoryBudget.release(reserved);
+		}
+		reserved = 0;
 	}
 
 	// --------------------------------------------------------- Public methods
@@ -96,30 +366,175 @@ public class GOutputStream extends ThresholdingOutputStream {
 	/**
 	 * Determines whether or not the data for this output stream has been retained in memory.
 	 *
-	 * @return always <code>true</code>
+	 * @return <code>true</code> if the storage is held in memory.
 	 */
 	public boolean isInMemory() {
-		return true;
+		return storage.isInMemory();
+	}
+
+	/**
+	 * Sets the budget to charge for the data held in memory by this output stream.
+	 *
+	 * @param memoryBudget The memory budget, or <code>null</code> for no limit.
+	 */
+	public void setMemoryBudget(GMemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the listener to notify when the data has been fully written, i.e. when this stream is closed.
+	 * Times are measured from this call.
+	 *
+	 * @param metricsListener The listener, or {@link GMetricsListener#NONE} for no measurements.
+	 */
+	public void setMetricsListener(GMetricsListener metricsListener) {
+		this.metricsListener = (metricsListener != null ? metricsListener : GMetricsListener.NONE);
+		this.createdAt = (this.metricsListener != GMetricsListener.NONE ? System.nanoTime() : 0);
+	}
+
+	/**
+	 * Sets the maximum number of bytes which may be written. Writing more throws a
+	 * {@link FileUploadBase.FileUploadIOException} caused by a
+	 * {@link FileUploadBase.FileSizeLimitExceededException}, before anything is buffered.
+	 *
+	 * @param sizeLimit The size limit, in bytes, or -1 for no limit.
+	 * @param fieldName The field name of the part, reported when the limit is exceeded.
+	 * @param fileName The file name of the part, reported when the limit is exceeded.
+	 */
+	public void setSizeLimit(long sizeLimit, String fieldName, String fileName) {
+		this.sizeLimit = sizeLimit;
+		this.fieldName = fieldName;
+		this.fileName = fileName;
+	}
+
+	/**
+	 * Sets the digester to update with the data as it is written, completed when this stream is closed.
+	 *
+	 * @param digester The digester, or <code>null</code> for no digests.
+	 */
+	public void setDigester(GDigester digester) {
+		this.digester = digester;
+	}
+
+	/**
+	 * Sets the store sharing the data with identical data, once this stream is closed after all writes succeeded.
+	 * The digester must compute the digest of the store's algorithm.
+	 *
+	 * @param dedupStore The dedup store, or <code>null</code> to keep the data in its own storage.
+	 */
+	public void setDedupStore(GDedupStore dedupStore) {
+		this.dedupStore = dedupStore;
+	}
+
+	/**
+	 * Returns the digest of the data computed with the given algorithm, once this stream is closed.
+	 *
+	 * @param algorithm The name of the algorithm, as configured.
+	 *
+	 * @return The digest, or <code>null</code> if not computed or not closed yet.
+	 */
+	public byte[] getDigest(String algorithm) {
+		if (digester == null || !digester.isFinished()) {
+			return null;
+		}
+		byte[] digest = digester.finish().get(algorithm);
+		return (digest != null ? digest.clone() : null);
+	}
+
+	/**
+	 * Sets an action to run once the data has been fully written, i.e. when this stream is first closed after all
+	 * writes succeeded.
+	 *
+	 * @param closeAction The action, or <code>null</code> for none.
+	 */
+	public void setCloseAction(Runnable closeAction) {
+		this.closeAction = closeAction;
+	}
+
+	/**
+	 * Releases the storage holding the data for this output stream, and gives its memory back to the budget.
+	 * The data is no longer available afterwards.
+	 */
+	public void release() {
+		storage.release();
+		releaseReserved();
+	}
+
+	/**
+	 * Returns the storage holding the data for this output stream.
+	 *
+	 * @return The storage.
+	 */
+	public GStorage getStorage() {
+		return storage;
 	}
 
 	/**
 	 * Returns the data for this output stream as an array of bytes.
+	 * Each call builds a new contiguous copy of the data.
 	 *
 	 * @return The data for this output stream, or <code>null</code> if no such data is available.
+	 *
+	 * @exception IOException if an error occurs.
+	 */
+	public byte[] getData() throws IOException {
+		return storage.toByteArray();
+	}
+
+	/**
+	 * Returns an input stream reading the data of this output stream without copying it.
+	 *
+	 * @return An input stream over the data written so far.
+	 *
+	 * @exception IOException if an error occurs.
 	 */
-	public byte[] getData() {
-		return memoryOutputStream.toByteArray();
+	public InputStream getInputStream() throws IOException {
+		return storage.getInputStream();
 	}
 
 	/**
-	 * Closes underlying output stream, and mark this as closed
+	 * Closes underlying output stream, and mark this as closed. If a write has failed, the partial data is
+	 * released instead, e.g. discarded by a sink.
 	 *
 	 * @exception IOException if an error occurs.
 	 */
 	@Override
 	public void close() throws IOException {
-		super.close();
+		if (failed) {
+			release();
+		} else {
+			super.close();
+		}
+		if (!closed && createdAt != 0) {
+			long now = System.nanoTime();
+			metricsListener.partWritten(getByteCount(), (firstByteAt != 0 ? firstByteAt : now) - createdAt,
+					now - createdAt, spilledGrowthCount + storage.getGrowthCount(), spilled);
+		}
+		boolean first = !closed;
 		closed = true;
+		if (digester != null) {
+			digester.finish();
+		}
+		if (first && !failed && dedupStore != null && digester != null) {
+			share();
+		}
+		if (first && !failed && closeAction != null) {
+			closeAction.run();
+		}
+	}
+
+	/**
+	 * Writes the data from this output stream to the specified file, after it has been closed.
+	 * The storage may move its data to the file instead of copying it.
+	 *
+	 * @param file file to write to.
+	 * @exception IOException if this stream is not yet closed or an error occurs.
+	 */
+	public void transferTo(File file) throws IOException {
+		if (!closed) {
+			throw new IOException("Stream not closed");
+		}
+		storage.transferTo(file);
 	}
 
 	/**
@@ -138,6 +553,6 @@ public class GOutputStream extends ThresholdingOutputStream {
 			throw new IOException("Stream not closed");
 		}
 
-		memoryOutputStream.writeTo(out);
+		storage.writeTo(out);
 	}
 }
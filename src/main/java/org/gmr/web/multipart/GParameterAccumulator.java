@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Collects the values of the form fields of a request in a single pass, then freezes them into the
+ * <code>String[]</code> values of the parameter map.
+ *
+ * <p>A field with a single value, the common case, holds just that value. The values of a repeated field are
+ * appended to a growing list, so that a field with thousands of values, e.g. checkboxes, is collected in linear
+ * time. The maps are sized up front from the number of parts, which bounds the number of fields.
+ *
+ * <p>Requests exposing their parameters while still reading them keep a parameter map up to date through
+ * {@link #updateParameters}, which freezes only the fields added to since the previous update.
+ *
+ * @author kernel164
+ * @see GFileUploadSupport#parseFileItems
+ */
+public class GParameterAccumulator {
+
+	/** Field name to a single String value, or to the List of values of a repeated field. */
+	private final Map<String, Object> values;
+
+	private final Map<String, String> contentTypes;
+
+	/** Names of the fields added to since the last update of a parameter map, <code>null</code> before. */
+	private Set<String> changed;
+
+	/**
+	 * Create a new accumulator for up to the given number of fields.
+	 *
+	 * @param expectedFields the expected number of fields, e.g. the number of parts.
+	 */
+	public GParameterAccumulator(int expectedFields) {
+		int capacity = capacityFor(expectedFields);
+		this.values = new HashMap<String, Object>(capacity);
+		this.contentTypes = new HashMap<String, String>(capacity);
+	}
+
+	/**
+	 * Adds a value of the given field.
+	 *
+	 * @param name the field name.
+	 * @param value the value.
+	 * @param contentType the content type of the part, kept for the last value of the field.
+	 */
+	@SuppressWarnings("unchecked")
+	public void add(String name, String value, String contentType) {
+		Object current = values.put(name, value);
+		if (current != null) {
+			List<String> list;
+			if (current instanceof String) {
+				list = new ArrayList<String>(4);
+				list.add((String) current);
+			} else {
+				list = (List<String>) current;
+			}
+			list.add(value);
+			values.put(name, list);
+		}
+		contentTypes.put(name, contentType);
+		if (changed != null) {
+			changed.add(name);
+		}
+	}
+
+	/**
+	 * Returns whether a value of the given field has been added.
+	 *
+	 * @param name the field name.
+	 * @return <code>true</code> if the field has a value.
+	 */
+	public boolean contains(String name) {
+		return values.containsKey(name);
+	}
+
+	/**
+	 * Returns the collected parameters, with the values of each field in the order they were added.
+	 *
+	 * @return a new map of field name to values.
+	 */
+	public Map<String, String[]> getParameters() {
+		Map<String, String[]> parameters = new HashMap<String, String[]>(capacityFor(values.size()));
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			parameters.put(entry.getKey(), freeze(entry.getValue()));
+		}
+		return parameters;
+	}
+
+	/**
+	 * Puts the values of the fields added to since the previous update, or of all the fields on the first update,
+	 * into the given parameter map.
+	 *
+	 * @param parameters the map of field name to values to update.
+	 */
+	public void updateParameters(Map<String, String[]> parameters) {
+		Collection<String> names = (changed != null ? changed : values.keySet());
+		for (String name : names) {
+			parameters.put(name, freeze(values.get(name)));
+		}
+		if (changed == null) {
+			changed = new HashSet<String>();
+		} else {
+			changed.clear();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String[] freeze(Object value) {
+		if (value instanceof String) {
+			return new String[] { (String) value };
+		}
+		List<String> list = (List<String>) value;
+		return list.toArray(new String[list.size()]);
+	}
+
+	/**
+	 * Returns the content types of the collected fields.
+	 *
+	 * @return the map of field name to content type.
+	 */
+	public Map<String, String> getContentTypes() {
+		return contentTypes;
+	}
+
+	/**
+	 * Returns the initial capacity of a HashMap holding the given number of entries without rehashing.
+	 */
+	static int capacityFor(int entries) {
+		return (entries < 3 ? entries + 1 : (int) (entries / 0.75f) + 1);
+	}
+}
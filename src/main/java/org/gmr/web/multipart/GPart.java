@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.FileItemStream;
+
+/**
+ * <p>A part of a multipart request published by a {@link GPartPublisher}: the metadata of the part, available
+ * right away, and the publisher of its content, read from the request as the subscriber demands it.
+ *
+ * <p>The content can be subscribed to once. Each chunk is a new buffer which the subscriber may keep. Cancelling
+ * the subscription skips the rest of the content.
+ *
+ * @author kernel164
+ * @see GPartPublisher
+ */
+public class GPart implements GFlow.Publisher<ByteBuffer> {
+
+	private final GPartPublisher publisher;
+
+	private final FileItemStream itemStream;
+
+	/** The following fields are guarded by the publisher. */
+	GFlow.Subscriber<? super ByteBuffer> subscriber;
+
+	long demand;
+
+	/** Whether the subscriber has received its last signal, or cancelled. */
+	boolean done;
+
+	Throwable error;
+
+	private InputStream in;
+
+	GPart(GPartPublisher publisher, FileItemStream itemStream) {
+		this.publisher = publisher;
+		this.itemStream = itemStream;
+	}
+
+	/**
+	 * Returns the name of the form field of the part.
+	 */
+	public String getFieldName() {
+		return itemStream.getFieldName();
+	}
+
+	/**
+	 * Returns the content type of the part, or <code>null</code> if not specified.
+	 */
+	public String getContentType() {
+		return itemStream.getContentType();
+	}
+
+	/**
+	 * Returns the original file name of the part, or <code>null</code> for a form field.
+	 */
+	public String getName() {
+		return itemStream.getName();
+	}
+
+	/**
+	 * Returns whether the part is a form field rather than an uploaded file.
+	 */
+	public boolean isFormField() {
+		return itemStream.isFormField();
+	}
+
+	/**
+	 * Returns the headers of the part, or <code>null</code> if not provided by Commons FileUpload.
+	 */
+	public FileItemHeaders getHeaders() {
+		return itemStream.getHeaders();
+	}
+
+	/**
+	 * Subscribes to the content of the part, in chunks of at most the chunk size of the publisher.
+	 *
+	 * @param subscriber the subscriber.
+	 */
+	public void subscribe(GFlow.Subscriber<? super ByteBuffer> subscriber) {
+		publisher.subscribe(this, subscriber);
+	}
+
+	/**
+	 * Reads the next chunk of the content.
+	 *
+	 * @return the chunk, or <code>null</code> at the end of the content.
+	 */
+	ByteBuffer read(int chunkSize) throws IOException {
+		if (in == null) {
+			in = itemStream.openStream();
+		}
+		byte[] chunk = new byte[chunkSize];
+		int read = in.read(chunk);
+		return (read == -1 ? null : ByteBuffer.wrap(chunk, 0, read));
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.fileupload.FileItemHeaders;
+
+/**
+ * <p>The headers of a single part, as read by {@link GMultipartParser}.
+ *
+ * <p>The headers are kept as the raw bytes of the header block, together with the offsets of each header
+ * name and value. Nothing is decoded until it is asked for, and the parser reuses a single instance for all
+ * the parts of a request: a handler keeping the headers of a part beyond
+ * {@link GMultipartParser.Handler#startPart startPart} must take a {@link #copy()}.
+ *
+ * <p>Header names are matched ignoring case. Folded header lines are unfolded in place.
+ *
+ * @author kernel164
+ * @see GMultipartParser
+ */
+public class GPartHeaders implements FileItemHeaders, Serializable {
+
+	private static final long serialVersionUID = 4872183740591282263L;
+
+	private static final String CONTENT_DISPOSITION = "Content-Disposition";
+
+	private static final String CONTENT_TYPE = "Content-Type";
+
+	private static final byte CR = 0x0D;
+
+	private static final byte LF = 0x0A;
+
+	private final String charsetName;
+
+	private transient Charset charset;
+
+	private byte[] data;
+
+	private int length;
+
+	/** Start and end offsets of the name, then of the value, of each header. */
+	private int[] offsets = new int[32];
+
+	private int count;
+
+	private String fieldName;
+
+	private String fileName;
+
+	private String contentType;
+
+	private boolean resolved;
+
+	/**
+	 * Create new headers decoded with the given charset.
+	 *
+	 * @param charset the charset of header values, e.g. file names.
+	 */
+	public GPartHeaders(Charset charset) {
+		this(charset, new byte[256]);
+	}
+
+	private GPartHeaders(Charset charset, byte[] data) {
+		this.charset = charset;
+		this.charsetName = charset.name();
+		this.data = data;
+	}
+
+	/**
+	 * Clears the headers of the previous part.
+	 */
+	void reset() {
+		length = 0;
+		count = 0;
+		fieldName = null;
+		fileName = null;
+		contentType = null;
+		resolved = false;
+	}
+
+	/**
+	 * Appends raw bytes of the header block.
+	 *
+	 * @return the number of bytes of the header block so far.
+	 */
+	int append(byte[] b, int off, int len) {
+		if (length + len > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+		}
+		System.arraycopy(b, off, data, length, len);
+		length += len;
+		return length;
+	}
+
+	/**
+	 * Splits the header block into header lines, once it is complete.
+	 */
+	void parse() {
+		int pos = 0;
+		while (pos < length) {
+			int end = lineEnd(pos);
+			while (end + 2 < length && isWhitespace(data[end + 2])) {
+				// folded header: join the continuation line
+				data[end] = ' ';
+				data[end + 1] = ' ';
+				end = lineEnd(end + 2);
+			}
+			int colon = indexOf((byte) ':', pos, end);
+			if (colon > pos) {
+				if (count * 4 == offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				int i = count * 4;
+				offsets[i] = pos;
+				offsets[i + 1] = trimEnd(pos, colon);
+				offsets[i + 2] = trimStart(colon + 1, end);
+				offsets[i + 3] = trimEnd(offsets[i + 2], end);
+				count++;
+			}
+			pos = end + 2;
+		}
+	}
+
+	/**
+	 * Returns a copy of these headers, safe to keep after the parser moved on to the next part.
+	 *
+	 * @return the copy.
+	 */
+	public GPartHeaders copy() {
+		GPartHeaders copy = new GPartHeaders(charset, Arrays.copyOf(data, length));
+		copy.length = length;
+		copy.offsets = Arrays.copyOf(offsets, count * 4);
+		copy.count = count;
+		copy.fieldName = fieldName;
+		copy.fileName = fileName;
+		copy.contentType = contentType;
+		copy.resolved = resolved;
+		return copy;
+	}
+
+	/**
+	 * Returns the size of the raw header block, in bytes.
+	 *
+	 * @return the size of the headers.
+	 */
+	public int getSize() {
+		return length;
+	}
+
+	/**
+	 * Returns the name of the form field of this part, from its Content-Disposition header.
+	 *
+	 * @return the field name, or <code>null</code> if the part is not form data.
+	 */
+	public String getFieldName() {
+		resolve();
+		return fieldName;
+	}
+
+	/**
+	 * Returns the original file name of this part, from its Content-Disposition header.
+	 *
+	 * @return the file name, empty if no file was selected, or <code>null</code> if the part is a form field.
+	 */
+	public String getFileName() {
+		resolve();
+		return fileName;
+	}
+
+	/**
+	 * Returns the content type of this part.
+	 *
+	 * @return the content type, or <code>null</code> if not specified.
+	 */
+	public String getContentType() {
+		resolve();
+		return contentType;
+	}
+
+	/**
+	 * Returns whether this part is a simple form field, i.e. whether it has no file name.
+	 *
+	 * @return <code>true</code> if the part is a form field.
+	 */
+	public boolean isFormField() {
+		return getFileName() == null;
+	}
+
+	public String getHeader(String name) {
+		int index = find(name, 0);
+		return (index >= 0 ? value(index) : null);
+	}
+
+	public Iterator<String> getHeaders(String name) {
+		List<String> values = new ArrayList<String>(1);
+		for (int index = find(name, 0); index >= 0; index = find(name, index + 1)) {
+			values.add(value(index));
+		}
+		return values.iterator();
+	}
+
+	public Iterator<String> getHeaderNames() {
+		List<String> names = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			String name = decode(offsets[i * 4], offsets[i * 4 + 1]).toLowerCase();
+			if (!names.contains(name)) {
+				names.add(name);
+			}
+		}
+		return names.iterator();
+	}
+
+	private void resolve() {
+		if (resolved) {
+			return;
+		}
+		resolved = true;
+		int index = find(CONTENT_TYPE, 0);
+		if (index >= 0) {
+			contentType = value(index);
+		}
+		index = find(CONTENT_DISPOSITION, 0);
+		if (index < 0) {
+			return;
+		}
+		int start = offsets[index * 4 + 2];
+		int end = offsets[index * 4 + 3];
+		int semicolon = indexOf((byte) ';', start, end);
+		int typeEnd = trimEnd(start, semicolon < 0 ? end : semicolon);
+		boolean formData = matches("form-data", start, typeEnd);
+		if (!formData && !matches("attachment", start, typeEnd)) {
+			return;
+		}
+		int pos = typeEnd;
+		while (pos < end) {
+			// parameter: [;] name [= value | "value"]
+			pos = trimStart(pos + 1, end);
+			int equals = pos;
+			while (equals < end && data[equals] != '=' && data[equals] != ';') {
+				equals++;
+			}
+			int nameEnd = trimEnd(pos, equals);
+			int valueStart = equals;
+			int valueEnd = equals;
+			int next = equals;
+			if (equals < end && data[equals] == '=') {
+				valueStart = trimStart(equals + 1, end);
+				if (valueStart < end && data[valueStart] == '"') {
+					valueStart++;
+					valueEnd = indexOf((byte) '"', valueStart, end);
+					if (valueEnd < 0) {
+						valueEnd = end;
+					}
+					next = indexOf((byte) ';', valueEnd, end);
+				} else {
+					next = indexOf((byte) ';', valueStart, end);
+					valueEnd = trimEnd(valueStart, next < 0 ? end : next);
+				}
+				if (next < 0) {
+					next = end;
+				}
+			}
+			if (formData && fieldName == null && matches("name", pos, nameEnd)) {
+				fieldName = decode(valueStart, valueEnd);
+			} else if (fileName == null && matches("filename", pos, nameEnd)) {
+				fileName = decode(valueStart, valueEnd).trim();
+			}
+			pos = next;
+		}
+	}
+
+	private int find(String name, int from) {
+		for (int i = from; i < count; i++) {
+			if (matches(name, offsets[i * 4], offsets[i * 4 + 1])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String value(int index) {
+		return decode(offsets[index * 4 + 2], offsets[index * 4 + 3]);
+	}
+
+	private String decode(int start, int end) {
+		return new String(data, start, end - start, getCharset());
+	}
+
+	private Charset getCharset() {
+		if (charset == null) {
+			charset = Charset.forName(charsetName);
+		}
+		return charset;
+	}
+
+	private boolean matches(String name, int start, int end) {
+		if (end - start != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			int c = data[start + i];
+			int n = name.charAt(i);
+			if (c != n && Character.toLowerCase(c) != Character.toLowerCase(n)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int lineEnd(int from) {
+		for (int i = from; i + 1 < length; i++) {
+			if (data[i] == CR && data[i + 1] == LF) {
+				return i;
+			}
+		}
+		return length;
+	}
+
+	private int indexOf(byte b, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int trimStart(int start, int end) {
+		while (start < end && isWhitespace(data[start])) {
+			start++;
+		}
+		return start;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && isWhitespace(data[end - 1])) {
+			end--;
+		}
+		return end;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	@Override
+	public String toString() {
+		return new String(data, 0, length, getCharset());
+	}
+}
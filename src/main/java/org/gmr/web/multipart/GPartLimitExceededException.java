@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import org.springframework.web.multipart.MultipartException;
+
+/**
+ * MultipartException thrown when a request has too many parts or too many header bytes.
+ *
+ * @author kernel164
+ * @see GPartLimiter
+ */
+public class GPartLimitExceededException extends MultipartException {
+
+	private static final long serialVersionUID = -6412038516935370218L;
+
+	private final String limitName;
+
+	private final long limit;
+
+	/**
+	 * Constructor for GPartLimitExceededException.
+	 *
+	 * @param limitName the name of the exceeded limit, e.g. <code>maxPartCount</code>
+	 * @param limit the value of the exceeded limit
+	 */
+	public GPartLimitExceededException(String limitName, long limit) {
+		super("Multipart request exceeds " + limitName + " of " + limit);
+		this.limitName = limitName;
+		this.limit = limit;
+	}
+
+	/**
+	 * Return the name of the exceeded limit: <code>maxPartCount</code>, <code>maxHeaderSize</code> or
+	 * <code>maxTotalHeaderSize</code>.
+	 */
+	public String getLimitName() {
+		return this.limitName;
+	}
+
+	/**
+	 * Return the value of the exceeded limit.
+	 */
+	public long getLimit() {
+		return this.limit;
+	}
+}
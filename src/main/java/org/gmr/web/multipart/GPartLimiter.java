@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.util.Iterator;
+
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.FileItemStream;
+
+/**
+ * <p>Counts the parts and header bytes of a single request as it is parsed, and rejects the request as soon as
+ * it has too many parts, a part with too large headers, or too many header bytes in total. This bounds the
+ * items, header maps and map entries a request can make the resolver create.
+ *
+ * <p>A limit of -1 means no limit. Not thread safe: a limiter belongs to a single request.
+ *
+ * @author kernel164
+ * @see GFileUploadSupport#setMaxPartCount
+ */
+public class GPartLimiter {
+
+	private final int maxPartCount;
+
+	private final int maxHeaderSize;
+
+	private final long maxTotalHeaderSize;
+
+	private final GMetricsListener metricsListener;
+
+	private int partCount;
+
+	private long headerBytes;
+
+	/**
+	 * Create a new limiter.
+	 *
+	 * @param maxPartCount the maximum number of parts.
+	 * @param maxHeaderSize the maximum size of the headers of a part, in bytes.
+	 * @param maxTotalHeaderSize the maximum size of the headers of all the parts, in bytes.
+	 * @param metricsListener the listener notified of the header sizes and of the exceeded limits.
+	 */
+	public GPartLimiter(int maxPartCount, int maxHeaderSize, long maxTotalHeaderSize, GMetricsListener metricsListener) {
+		this.maxPartCount = maxPartCount;
+		this.maxHeaderSize = maxHeaderSize;
+		this.maxTotalHeaderSize = maxTotalHeaderSize;
+		this.metricsListener = (metricsListener != null ? metricsListener : GMetricsListener.NONE);
+	}
+
+	/**
+	 * Checks the headers of the current part while they are being read.
+	 *
+	 * @param size the size of the headers read so far, in bytes.
+	 * @throws GPartLimitExceededException if the headers of the part or of the request are too large.
+	 */
+	public void checkHeaderSize(int size) throws GPartLimitExceededException {
+		if (maxHeaderSize >= 0 && size > maxHeaderSize) {
+			throw exceeded("maxHeaderSize", maxHeaderSize);
+		}
+		if (maxTotalHeaderSize >= 0 && headerBytes + size > maxTotalHeaderSize) {
+			throw exceeded("maxTotalHeaderSize", maxTotalHeaderSize);
+		}
+	}
+
+	/**
+	 * Counts a part, once its headers have been read.
+	 *
+	 * @param headerSize the size of the headers of the part, in bytes.
+	 * @throws GPartLimitExceededException if the request has too many parts or header bytes.
+	 */
+	public void partStarted(int headerSize) throws GPartLimitExceededException {
+		checkHeaderSize(headerSize);
+		if (maxPartCount >= 0 && partCount >= maxPartCount) {
+			throw exceeded("maxPartCount", maxPartCount);
+		}
+		partCount++;
+		headerBytes += headerSize;
+		metricsListener.headersRead(headerSize);
+	}
+
+	/**
+	 * Counts a part read by Commons FileUpload, estimating the size of its headers from their names and values.
+	 * Where Commons FileUpload does not expose the headers, the size is estimated from the field name, file name
+	 * and content type of the part.
+	 *
+	 * @param itemStream the part.
+	 * @throws GPartLimitExceededException if the request has too many parts or header bytes.
+	 */
+	public void partStarted(FileItemStream itemStream) throws GPartLimitExceededException {
+		FileItemHeaders headers = itemStream.getHeaders();
+		int size = 2;
+		if (headers != null) {
+			for (Iterator<?> names = headers.getHeaderNames(); names.hasNext();) {
+				String name = (String) names.next();
+				for (Iterator<?> values = headers.getHeaders(name); values.hasNext();) {
+					size += name.length() + ((String) values.next()).length() + 4;
+				}
+			}
+		} else {
+			// Content-Disposition: form-data; name="..."; filename="..."
+			size += 44 + length(itemStream.getFieldName());
+			if (itemStream.getName() != null) {
+				size += 13 + itemStream.getName().length();
+			}
+			if (itemStream.getContentType() != null) {
+				size += 16 + itemStream.getContentType().length();
+			}
+		}
+		partStarted(size);
+	}
+
+	private static int length(String value) {
+		return (value != null ? value.length() : 0);
+	}
+
+	private GPartLimitExceededException exceeded(String limitName, long limit) {
+		metricsListener.partLimitExceeded(limitName, limit);
+		return new GPartLimitExceededException(limitName, limit);
+	}
+
+	/**
+	 * Returns the number of parts counted so far.
+	 */
+	public int getPartCount() {
+		return partCount;
+	}
+
+	/**
+	 * Returns the size of the headers of the parts counted so far, in bytes.
+	 */
+	public long getHeaderBytes() {
+		return headerBytes;
+	}
+}
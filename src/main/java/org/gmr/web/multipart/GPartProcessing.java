@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * <p>The processing of one uploaded file by the configured {@link GPartProcessor}s, started when its content has
+ * been fully written.
+ *
+ * <p>The processors of a file run one after the other, in a single task of the executor: files are processed in
+ * parallel with each other and with the reading of the request. Asking for a result waits for the processing to
+ * complete. Deleting the file first cancels the processors not started yet and waits for the running one.
+ *
+ * <p>The executor must run or reject every task: a task silently discarded would never complete.
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setPartProcessors
+ * @see GMultipartFile#getProcessingResult
+ */
+public class GPartProcessing implements Runnable {
+
+	private final FileItem fileItem;
+
+	private final Map<String, GPartProcessor> processors;
+
+	private final Map<String, Object> results = new LinkedHashMap<String, Object>();
+
+	private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile boolean cancelled;
+
+	GPartProcessing(FileItem fileItem, Map<String, GPartProcessor> processors) {
+		this.fileItem = fileItem;
+		this.processors = processors;
+	}
+
+	/**
+	 * Starts the processing on the given executor, or on the current thread if the executor is <code>null</code>
+	 * or rejects it.
+	 */
+	void start(Executor executor) {
+		if (executor != null) {
+			try {
+				executor.execute(this);
+				return;
+			} catch (RejectedExecutionException ex) {
+				// process on the request thread rather than not at all
+			}
+		}
+		run();
+	}
+
+	public void run() {
+		try {
+			for (Map.Entry<String, GPartProcessor> entry : processors.entrySet()) {
+				if (cancelled) {
+					break;
+				}
+				try {
+					Object result = entry.getValue().process(fileItem);
+					synchronized (results) {
+						results.put(entry.getKey(), result);
+					}
+				} catch (Exception ex) {
+					synchronized (results) {
+						failures.put(entry.getKey(), ex);
+					}
+				}
+			}
+		} finally {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Returns whether all the processors have completed.
+	 *
+	 * @return <code>true</code> if the processing is complete.
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the processing to complete, then returns the result of the given processor.
+	 *
+	 * @param name the name of the processor.
+	 * @return the result, or <code>null</code> if there is no such processor.
+	 * @throws IOException if the processor failed, with its exception as the cause.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public Object getResult(String name) throws IOException {
+		await();
+		synchronized (results) {
+			Exception failure = failures.get(name);
+			if (failure != null) {
+				IOException ex = new IOException("Processor '" + name + "' failed on multipart file '" +
+						fileItem.getFieldName() + "': " + failure.getMessage());
+				ex.initCause(failure);
+				throw ex;
+			}
+			return results.get(name);
+		}
+	}
+
+	/**
+	 * Waits for the processing to complete, then returns the results of the processors which succeeded.
+	 *
+	 * @return the map of processor name to result.
+	 * @throws InterruptedIOException if interrupted while waiting.
+	 */
+	public Map<String, Object> getResults() throws IOException {
+		await();
+		synchronized (results) {
+			return Collections.unmodifiableMap(new LinkedHashMap<String, Object>(results));
+		}
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the processing of multipart file '" +
+					fileItem.getFieldName() + "'");
+		}
+	}
+
+	/**
+	 * Cancels the processors not started yet, and waits for the running one to complete.
+	 */
+	void cancel() {
+		cancelled = true;
+		join();
+	}
+
+	/**
+	 * Waits for the processing to complete, ignoring interrupts.
+	 */
+	void join() {
+		boolean interrupted = false;
+		while (!isDone()) {
+			try {
+				done.await();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates an executor suited to processing parts: a virtual thread per part where the JVM supports them,
+	 * which the JVM runs on as many carrier threads as processors; otherwise a pool of the given number of daemon
+	 * threads, with a bounded queue. Parts rejected by a full or shut down executor are processed on the request
+	 * threads.
+	 *
+	 * @param parallelism the number of threads of the pool, if virtual threads are not available.
+	 * @return the new executor, to be shut down by the caller.
+	 */
+	public static ExecutorService newExecutor(int parallelism) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception ex) {
+			// virtual threads not available
+		}
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(parallelism * 4), new ThreadFactory() {
+
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "gmultipart-processor-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
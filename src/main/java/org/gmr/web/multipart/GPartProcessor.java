@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * <p>Work done on the content of each uploaded file once it has been fully received, e.g. computing a checksum,
+ * sniffing the content type or decompressing.
+ *
+ * <p>Processors run on the executor configured on {@link GFileItemFactory}, while the following parts of the
+ * request are still being read. They read the content through {@link FileItem#getInputStream()} and must not
+ * modify nor delete the item. Their results are available from {@link GMultipartFile#getProcessingResult}.
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setPartProcessors
+ */
+public interface GPartProcessor {
+
+	/**
+	 * Processes the content of an uploaded file.
+	 *
+	 * @param fileItem the file, fully written.
+	 * @return the result, attached to the file.
+	 * @throws Exception if processing failed, thrown again when asking for the result.
+	 */
+	Object process(FileItem fileItem) throws Exception;
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.springframework.web.multipart.MultipartException;
+
+/**
+ * <p>Publishes the parts of a multipart request, in arrival order, each part publishing its content in chunks, so
+ * that uploads can be forwarded as they are read without buffering whole parts.
+ *
+ * <p>The request is read on demand only: a part is read from the request when the part subscriber requests it,
+ * a chunk when the content subscriber requests it. The body is read with blocking I/O, on the thread calling
+ * {@link GFlow.Subscription#request}. As the parts are read one after the other, the next part is published
+ * only once the content of the current one has been completely consumed or cancelled: every part, form fields
+ * included, must be subscribed to.
+ *
+ * <p>Failures, e.g. an upload exceeding the maximum size or a request with too many parts, are signalled as
+ * {@link MultipartException}s to the content subscriber of the current part and to the part subscriber. A content
+ * subscriber arriving once the publisher has stopped, as it failed or the parts were cancelled, receives the
+ * failure, or an IllegalStateException after a cancellation. A publisher accepts a single subscriber.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#publishParts
+ */
+public class GPartPublisher implements GFlow.Publisher<GPart> {
+
+	private final FileItemIterator itemIterator;
+
+	private final GPartLimiter partLimiter;
+
+	private final int chunkSize;
+
+	/** Number of pending drain requests; the thread incrementing it from zero drains. */
+	private final AtomicInteger wip = new AtomicInteger();
+
+	/** The following fields are guarded by this publisher. */
+	private GFlow.Subscriber<? super GPart> subscriber;
+
+	private long demand;
+
+	private boolean cancelled;
+
+	private boolean terminated;
+
+	private Throwable error;
+
+	/** The failure which terminated the publisher, if any. */
+	private Throwable failure;
+
+	private GPart current;
+
+	/**
+	 * Create a new publisher.
+	 *
+	 * @param itemIterator the iterator over the parts of the request
+	 * @param partLimiter the limiter counting the parts of the request
+	 * @param chunkSize the maximum size of the content chunks, in bytes
+	 */
+	public GPartPublisher(FileItemIterator itemIterator, GPartLimiter partLimiter, int chunkSize) {
+		this.itemIterator = itemIterator;
+		this.partLimiter = partLimiter;
+		this.chunkSize = chunkSize;
+	}
+
+	public void subscribe(GFlow.Subscriber<? super GPart> subscriber) {
+		synchronized (this) {
+			if (this.subscriber == null) {
+				this.subscriber = subscriber;
+				subscriber = null;
+			}
+		}
+		if (subscriber != null) {
+			reject(subscriber, "parts");
+			return;
+		}
+		this.subscriber.onSubscribe(new GFlow.Subscription() {
+
+			public void request(long n) {
+				synchronized (GPartPublisher.this) {
+					if (n <= 0) {
+						error = new IllegalArgumentException("Requested " + n + " parts");
+					}
+					demand = add(demand, n);
+				}
+				drain();
+			}
+
+			public void cancel() {
+				synchronized (GPartPublisher.this) {
+					cancelled = true;
+				}
+				drain();
+			}
+		});
+	}
+
+	void subscribe(final GPart part, GFlow.Subscriber<? super ByteBuffer> subscriber) {
+		synchronized (this) {
+			if (part.subscriber == null) {
+				part.subscriber = subscriber;
+				subscriber = null;
+			}
+		}
+		if (subscriber != null) {
+			reject(subscriber, "the content of part '" + part.getFieldName() + "'");
+			return;
+		}
+		part.subscriber.onSubscribe(new GFlow.Subscription() {
+
+			public void request(long n) {
+				synchronized (GPartPublisher.this) {
+					if (n <= 0) {
+						part.error = new IllegalArgumentException("Requested " + n + " chunks");
+					}
+					part.demand = add(part.demand, n);
+				}
+				drain();
+			}
+
+			public void cancel() {
+				synchronized (GPartPublisher.this) {
+					part.done = true;
+				}
+				drain();
+			}
+		});
+		terminateLate(part);
+	}
+
+	/**
+	 * Signals the content subscriber of a part which the publisher stopped reading before the subscriber arrived,
+	 * as it failed or the parts were cancelled.
+	 */
+	private void terminateLate(GPart part) {
+		Throwable lateError;
+		synchronized (this) {
+			if (!terminated || part.done) {
+				return;
+			}
+			part.done = true;
+			lateError = (failure != null ? failure
+					: new IllegalStateException("Parts were cancelled before the content of part '"
+							+ part.getFieldName() + "' was subscribed to"));
+		}
+		part.subscriber.onError(lateError);
+	}
+
+	private static void reject(GFlow.Subscriber<?> subscriber, String what) {
+		subscriber.onSubscribe(new GFlow.Subscription() {
+
+			public void request(long n) {
+			}
+
+			public void cancel() {
+			}
+		});
+		subscriber.onError(new IllegalStateException("Only one subscriber allowed to " + what));
+	}
+
+	private static long add(long demand, long n) {
+		long sum = demand + Math.max(n, 0);
+		return (sum < 0 ? Long.MAX_VALUE : sum);
+	}
+
+	/**
+	 * Emits as much as demanded. Signals are emitted by a single thread at a time, without holding the lock, so
+	 * that subscribers may request more from within a signal.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		do {
+			try {
+				while (emit()) {
+				}
+			} catch (FileUploadException ex) {
+				fail(GFileUploadSupport.toMultipartException(ex));
+			} catch (FileUploadBase.FileUploadIOException ex) {
+				fail(GFileUploadSupport.toMultipartException(ex.getCause()));
+			} catch (IOException ex) {
+				fail(new MultipartException("Could not read multipart servlet request", ex));
+			} catch (RuntimeException ex) {
+				fail(ex);
+			}
+		} while (wip.decrementAndGet() != 0);
+	}
+
+	/**
+	 * Emits the next signal, if any is demanded.
+	 *
+	 * @return whether a signal was emitted, or the state changed.
+	 */
+	private boolean emit() throws IOException, FileUploadException {
+		GPart part;
+		Throwable failure;
+		synchronized (this) {
+			if (terminated) {
+				return false;
+			}
+			failure = error;
+			part = current;
+		}
+		if (failure != null) {
+			fail(failure);
+			return false;
+		}
+		if (part != null) {
+			Throwable partError;
+			synchronized (this) {
+				if (part.done) {
+					current = null;
+					return true;
+				}
+				partError = part.error;
+				if (partError != null) {
+					part.done = true;
+				} else if (part.subscriber == null && cancelled) {
+					// no one will read the part: stop, its content subscriber is signalled when it arrives
+					terminated = true;
+					current = null;
+					return false;
+				} else if (part.subscriber == null || part.demand == 0) {
+					return false;
+				} else {
+					part.demand--;
+				}
+			}
+			if (partError != null) {
+				part.subscriber.onError(partError);
+				return true;
+			}
+			ByteBuffer chunk = part.read(chunkSize);
+			if (chunk == null) {
+				synchronized (this) {
+					part.done = true;
+				}
+				part.subscriber.onComplete();
+			} else {
+				part.subscriber.onNext(chunk);
+			}
+			return true;
+		}
+		synchronized (this) {
+			if (cancelled) {
+				terminated = true;
+				return false;
+			}
+			if (demand == 0) {
+				return false;
+			}
+		}
+		if (!itemIterator.hasNext()) {
+			synchronized (this) {
+				terminated = true;
+			}
+			subscriber.onComplete();
+			return false;
+		}
+		FileItemStream itemStream = itemIterator.next();
+		partLimiter.partStarted(itemStream);
+		part = new GPart(this, itemStream);
+		synchronized (this) {
+			current = part;
+			demand--;
+		}
+		subscriber.onNext(part);
+		return true;
+	}
+
+	private void fail(Throwable failure) {
+		GPart part;
+		boolean notify;
+		synchronized (this) {
+			if (terminated) {
+				return;
+			}
+			part = current;
+			notify = !cancelled;
+			terminated = true;
+			this.failure = failure;
+			current = null;
+			if (part != null && (part.done || part.subscriber == null)) {
+				part = null;
+			}
+			if (part != null) {
+				part.done = true;
+			}
+		}
+		if (part != null) {
+			part.subscriber.onError(failure);
+		}
+		if (notify) {
+			subscriber.onError(failure);
+		}
+	}
+}
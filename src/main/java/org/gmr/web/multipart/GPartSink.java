@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+
+import org.apache.commons.fileupload.FileItem;
+
+/**
+ * <p>Strategy interface for forwarding the content of uploaded files straight to their destination, e.g. an
+ * object store or an archive, instead of holding it in the storage of the file item.
+ *
+ * <p>The content is written to the {@link GSinkStorage} opened for each file as it is read from the request.
+ * Size limits and digests still apply; the items only expose the metadata, the digests and the result of the
+ * sink. Implementations shipped with this package:
+ * <ul>
+ * <li>{@link GFileSink}: files in a directory</li>
+ * <li>{@link GMemorySink}: byte arrays, e.g. for testing</li>
+ * </ul>
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setPartSinks
+ */
+public interface GPartSink {
+
+	/**
+	 * Opens the destination of the content of the given uploaded file, before its content is read.
+	 *
+	 * @param fileItem the file, with its metadata.
+	 * @return the storage forwarding the content to the destination.
+	 * @exception IOException if the destination could not be opened.
+	 */
+	GSinkStorage open(FileItem fileItem) throws IOException;
+}
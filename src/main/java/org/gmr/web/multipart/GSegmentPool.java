@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>A bounded pool of fixed-size byte segments, heap or direct, reused by the {@link GChunkedBuffer}s of
+ * a {@link GMemoryStorageFactory} across requests.
+ *
+ * <p>Segments are borrowed while a part is written, and returned when its storage is released, i.e. when its
+ * {@link GFileItem} is deleted or spills to the spill storage. When the pool is empty, new segments are
+ * allocated; when it is full, returned segments are left to the garbage collector.
+ *
+ * <p>Each borrowing storage is tracked: a storage which is garbage collected without having been released is
+ * reported as a leak, typically a multipart request which was never cleaned up.
+ *
+ * <p>As the segments of a released storage are reused, its input streams fail from then on rather than read
+ * the content of another request.
+ *
+ * @author kernel164
+ * @see GMemoryStorageFactory#setPoolSize
+ */
+public class GSegmentPool {
+
+	protected static final Log logger = LogFactory.getLog(GSegmentPool.class);
+
+	private final int segmentSize;
+
+	private final boolean direct;
+
+	private final BlockingQueue<ByteBuffer> free;
+
+	private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+	private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+	private final AtomicLong leakedSegments = new AtomicLong();
+
+	/**
+	 * Create a new pool.
+	 *
+	 * @param segmentSize the size of a single segment, in bytes.
+	 * @param direct whether to allocate direct (off-heap) segments instead of heap segments.
+	 * @param maxPooled the maximum number of idle segments kept by the pool.
+	 */
+	public GSegmentPool(int segmentSize, boolean direct, int maxPooled) {
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+		}
+		this.segmentSize = segmentSize;
+		this.direct = direct;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	/**
+	 * Borrows a cleared segment, allocating a new one if the pool is empty.
+	 *
+	 * @param lease the lease of the borrowing storage.
+	 * @return the segment.
+	 */
+	public ByteBuffer acquire(Lease lease) {
+		detectLeaks();
+		ByteBuffer segment = free.poll();
+		if (segment == null) {
+			segment = (direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize));
+		}
+		lease.segments.incrementAndGet();
+		return segment;
+	}
+
+	/**
+	 * Returns a segment to the pool. The segment is dropped if the pool is full.
+	 *
+	 * @param segment the segment, as borrowed from this pool.
+	 */
+	public void release(ByteBuffer segment) {
+		segment.clear();
+		free.offer(segment);
+	}
+
+	/**
+	 * Starts tracking the segments borrowed by the given storage, until the returned lease is closed.
+	 *
+	 * @param owner the borrowing storage.
+	 * @return the lease to close when the storage has returned its segments.
+	 */
+	public Lease lease(Object owner) {
+		Lease lease = new Lease(owner, collected);
+		leases.add(lease);
+		return lease;
+	}
+
+	/**
+	 * Returns the size of a single segment.
+	 *
+	 * @return the segment size, in bytes.
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Returns whether the segments are direct (off-heap) buffers.
+	 *
+	 * @return <code>true</code> if direct memory is used.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns the number of idle segments currently held by the pool.
+	 *
+	 * @return the number of pooled segments.
+	 */
+	public int getPooledCount() {
+		return free.size();
+	}
+
+	/**
+	 * Returns the number of storages currently borrowing segments.
+	 *
+	 * @return the number of open leases.
+	 */
+	public int getLeaseCount() {
+		return leases.size();
+	}
+
+	/**
+	 * Returns the number of segments detected as leaked so far, i.e. never returned by their storage.
+	 *
+	 * @return the number of leaked segments.
+	 */
+	public long getLeakedCount() {
+		detectLeaks();
+		return leakedSegments.get();
+	}
+
+	private void detectLeaks() {
+		Reference<?> ref;
+		while ((ref = collected.poll()) != null) {
+			Lease lease = (Lease) ref;
+			if (leases.remove(lease)) {
+				int count = lease.segments.get();
+				leakedSegments.addAndGet(count);
+				if (logger.isWarnEnabled()) {
+					logger.warn("Multipart storage garbage collected without being released: " + count
+							+ " segment(s) not returned to the pool. Make sure every multipart request is cleaned up.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tracks the segments borrowed by a single storage.
+	 */
+	public final class Lease extends PhantomReference<Object> {
+
+		private final AtomicInteger segments = new AtomicInteger();
+
+		private Lease(Object owner, ReferenceQueue<Object> queue) {
+			super(owner, queue);
+		}
+
+		/**
+		 * Ends tracking, once the storage has returned its segments to the pool.
+		 */
+		public void close() {
+			leases.remove(this);
+			clear();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>{@link GStorage} forwarding the content of a file item to its destination as it is written, as opened by a
+ * {@link GPartSink}. The content passes through straight from the read buffer of the parser; nothing is kept,
+ * so the content cannot be read back from the item.
+ *
+ * <p>Closing the storage closes the destination, then {@link #complete()} provides the result of the sink, e.g.
+ * the location of the content. Releasing the storage before it was closed, e.g. because the request failed,
+ * closes the destination and {@link #discard() discards} the partial content. Releasing it afterwards leaves
+ * the forwarded content in place.
+ *
+ * @author kernel164
+ * @see GPartSink
+ */
+public class GSinkStorage extends GStorage {
+
+	private final OutputStream out;
+
+	private final WritableByteChannel channel;
+
+	private final String description;
+
+	private long size;
+
+	private boolean completed;
+
+	private boolean released;
+
+	private Object result;
+
+	/**
+	 * Create a new storage forwarding to the given output stream.
+	 *
+	 * @param out the destination.
+	 * @param description a description of the destination, e.g. its location.
+	 */
+	public GSinkStorage(OutputStream out, String description) {
+		this.out = out;
+		this.channel = null;
+		this.description = description;
+	}
+
+	/**
+	 * Create a new storage forwarding to the given channel, writing from the read buffer without copying it.
+	 *
+	 * @param channel the destination.
+	 * @param description a description of the destination, e.g. its location.
+	 */
+	public GSinkStorage(WritableByteChannel channel, String description) {
+		this.out = null;
+		this.channel = channel;
+		this.description = description;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (channel != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} else {
+			out.write(b, off, len);
+		}
+		size += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Closes the destination and completes the sink, once the content has been fully written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (completed || released) {
+			return;
+		}
+		closeDestination();
+		result = complete();
+		completed = true;
+	}
+
+	private void closeDestination() throws IOException {
+		if (channel != null) {
+			channel.close();
+		} else {
+			out.close();
+		}
+	}
+
+	/**
+	 * Called once the content has been fully forwarded and the destination closed. Returns <code>null</code> by
+	 * default.
+	 *
+	 * @return the result of the sink, exposed by {@link GMultipartFile#getSinkResult()}.
+	 * @exception IOException if the content could not be completed.
+	 */
+	protected Object complete() throws IOException {
+		return null;
+	}
+
+	/**
+	 * Called when the storage is released before the content has been fully forwarded, after closing the
+	 * destination. Does nothing by default.
+	 */
+	protected void discard() {
+	}
+
+	/**
+	 * Returns the result of the sink.
+	 *
+	 * @return the result, or <code>null</code> if the content has not been fully forwarded.
+	 */
+	public Object getResult() {
+		return result;
+	}
+
+	/**
+	 * Determines whether the content has been fully forwarded.
+	 *
+	 * @return <code>true</code> once the storage has been closed.
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw forwarded();
+	}
+
+	@Override
+	public byte[] toByteArray() throws IOException {
+		throw forwarded();
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		throw forwarded();
+	}
+
+	@Override
+	public void transferTo(File dest) throws IOException {
+		throw forwarded();
+	}
+
+	private IOException forwarded() {
+		return new IOException("Content was forwarded to " + description + " and cannot be read back");
+	}
+
+	/**
+	 * Returns <code>false</code>: the content is not held by this storage.
+	 */
+	@Override
+	public boolean isAvailable() {
+		return false;
+	}
+
+	/**
+	 * Returns <code>false</code>: the content is not held by this storage, so it neither spills nor is charged
+	 * to the memory budget.
+	 */
+	@Override
+	public boolean isInMemory() {
+		return false;
+	}
+
+	@Override
+	public String getDescription() {
+		return "forwarded to " + description;
+	}
+
+	@Override
+	public void release() {
+		if (completed || released) {
+			return;
+		}
+		released = true;
+		try {
+			closeDestination();
+		} catch (IOException ex) {
+			// nothing more to do with a discarded destination
+		}
+		discard();
+	}
+}
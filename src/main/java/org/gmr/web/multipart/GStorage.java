@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p>Backing store for the content of a single {@link GFileItem}, as created by a {@link GStorageFactory}.
+ *
+ * <p>The content is written once through the {@link OutputStream} methods and read back any number of
+ * times afterwards. {@link #release()} frees the resources held by the storage; the content is no longer
+ * available afterwards.
+ *
+ * @author kernel164
+ * @see GOutputStream
+ * @see GStorageFactory
+ */
+public abstract class GStorage extends OutputStream {
+
+	/**
+	 * Returns the number of bytes written to this storage.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public abstract long getSize();
+
+	/**
+	 * Returns an input stream over the content written so far.
+	 *
+	 * @return an input stream over the content.
+	 * @exception IOException if an error occurs.
+	 */
+	public abstract InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns the content as a newly allocated contiguous array.
+	 *
+	 * @return a copy of the content.
+	 * @exception IOException if an error occurs.
+	 */
+	public abstract byte[] toByteArray() throws IOException;
+
+	/**
+	 * Decodes the content with the given charset. The default implementation decodes a copy built by
+	 * {@link #toByteArray()}; implementations may decode the content in place instead.
+	 *
+	 * @param charset the charset of the content.
+	 * @return the decoded content.
+	 * @exception IOException if an error occurs.
+	 */
+	public String toString(Charset charset) throws IOException {
+		return new String(toByteArray(), charset);
+	}
+
+	/**
+	 * Writes the content to the given output stream.
+	 *
+	 * @param out output stream to write to.
+	 * @exception IOException if an error occurs.
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * Writes the content to the given file, replacing its content. The default implementation copies the
+	 * content through {@link #writeTo(OutputStream)}; implementations may move the content instead, in which
+	 * case it is no longer {@link #isAvailable() available} afterwards.
+	 *
+	 * @param dest the destination file.
+	 * @exception IOException if an error occurs.
+	 */
+	public void transferTo(File dest) throws IOException {
+		OutputStream out = new FileOutputStream(dest);
+		try {
+			writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Determines whether the content is still available, i.e. has not been moved by {@link #transferTo(File)}.
+	 *
+	 * @return <code>true</code> by default.
+	 */
+	public boolean isAvailable() {
+		return true;
+	}
+
+	/**
+	 * Determines whether the content is held in memory.
+	 *
+	 * @return <code>true</code> if the content is held in (heap or direct) memory.
+	 */
+	public abstract boolean isInMemory();
+
+	/**
+	 * Returns a description for the storage location of the content, e.g. "in memory".
+	 *
+	 * @return the storage description.
+	 */
+	public abstract String getDescription();
+
+	/**
+	 * Returns the number of times this storage has grown its memory so far, e.g. allocated a chunk.
+	 *
+	 * @return 0 by default.
+	 */
+	public int getGrowthCount() {
+		return 0;
+	}
+
+	/**
+	 * Frees the resources held by this storage. Does nothing by default.
+	 */
+	public void release() {
+	}
+}
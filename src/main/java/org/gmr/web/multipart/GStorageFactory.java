@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+
+/**
+ * <p>Strategy interface for creating the {@link GStorage} that holds the content of a {@link GFileItem}.
+ *
+ * <p>Implementations shipped with this package:
+ * <ul>
+ * <li>{@link GMemoryStorageFactory}: chunked heap or direct memory (the default)</li>
+ * <li>{@link GFileStorageFactory}: temporary files, optionally read back through memory mapping</li>
+ * </ul>
+ *
+ * @author kernel164
+ * @see GFileItemFactory#setStorageFactory
+ */
+public interface GStorageFactory {
+
+	/**
+	 * Create a new, empty storage for the content of a single file item.
+	 *
+	 * @return the new storage.
+	 * @exception IOException if the storage could not be created.
+	 */
+	GStorage createStorage() throws IOException;
+}
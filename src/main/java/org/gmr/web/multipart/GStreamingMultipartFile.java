@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.fileupload.FileItemHeaders;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.util.Streams;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * <p>MultipartFile implementation for a file part which is read straight from the request body,
+ * as handed out by {@link GStreamingMultipartHttpServletRequest#nextFile()}.
+ *
+ * <p>The content is not buffered: it can be consumed exactly once, through {@link #getInputStream()},
+ * {@link #getBytes()} or {@link #transferTo(File)}, and only until the next part of the request is
+ * requested. The size is unknown (<code>-1</code>) until the content has been read completely.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setStreaming
+ */
+public class GStreamingMultipartFile implements MultipartFile {
+
+	private final FileItemStream itemStream;
+
+	private boolean consumed = false;
+
+	private long size = -1;
+
+	/**
+	 * Create an instance wrapping the given FileItemStream.
+	 *
+	 * @param itemStream the FileItemStream to wrap
+	 */
+	public GStreamingMultipartFile(FileItemStream itemStream) {
+		this.itemStream = itemStream;
+	}
+
+	/**
+	 * Return the part headers.
+	 */
+	public FileItemHeaders getHeaders() {
+		return this.itemStream.getHeaders();
+	}
+
+	/**
+	 * Get file name.
+	 */
+	public String getName() {
+		return this.itemStream.getFieldName();
+	}
+
+	/**
+	 * Get original file name.
+	 */
+	public String getOriginalFilename() {
+		return GMultipartFile.stripPath(this.itemStream.getName());
+	}
+
+	/**
+	 * Get file content type.
+	 */
+	public String getContentType() {
+		return this.itemStream.getContentType();
+	}
+
+	/**
+	 * Is empty file? Only known once the content has been read.
+	 */
+	public boolean isEmpty() {
+		return (this.size == 0);
+	}
+
+	/**
+	 * Get file size, or <code>-1</code> if the content has not been read completely yet.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Read the remaining content into a byte array.
+	 */
+	public byte[] getBytes() throws IOException {
+		return FileCopyUtils.copyToByteArray(getInputStream());
+	}
+
+	/**
+	 * Get the one-shot input stream reading the content from the request body.
+	 *
+	 * @throws IllegalStateException if the content has already been consumed
+	 */
+	public InputStream getInputStream() throws IOException, IllegalStateException {
+		if (this.consumed) {
+			throw new IllegalStateException("Streamed multipart content of [" + getName() + "] has already been consumed");
+		}
+		this.consumed = true;
+		return new CountingInputStream(this.itemStream.openStream());
+	}
+
+	/**
+	 * Stream the content to the given destination file.
+	 */
+	public void transferTo(File dest) throws IOException, IllegalStateException {
+		InputStream in = getInputStream();
+		OutputStream out = new FileOutputStream(dest);
+		Streams.copy(in, out, true);
+	}
+
+	/**
+	 * Return a description for the storage location of the multipart content.
+	 */
+	public String getStorageDescription() {
+		return "streamed";
+	}
+
+	/**
+	 * Input stream recording the size of the part once it has been read up to its end.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		private long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) {
+				size = count;
+			} else {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n == -1) {
+				size = count;
+			} else {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
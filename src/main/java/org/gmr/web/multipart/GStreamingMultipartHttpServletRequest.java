@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.util.Streams;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.support.DefaultMultipartHttpServletRequest;
+
+/**
+ * <p>Multipart request which reads the request body as a stream of parts instead of buffering every
+ * part up front, as created by {@link GMultipartResolver} in streaming mode.
+ *
+ * <p>File parts are handed out one at a time, in arrival order, through {@link #nextFile()}; each of them
+ * can only be read until the next one is requested. Form fields are collected into the parameter map while
+ * the request is traversed: fields preceding the first file part are available right away, fields
+ * following a file part only once that part has been passed. The file map of this request is always empty.
+ *
+ * @author kernel164
+ * @see GMultipartResolver#setStreaming
+ * @see GStreamingMultipartFile
+ */
+public class GStreamingMultipartHttpServletRequest extends DefaultMultipartHttpServletRequest {
+
+	private final FileItemIterator itemIterator;
+
+	private final String encoding;
+
+	private final GPartLimiter partLimiter;
+
+	private final GParameterAccumulator parameterAccumulator = new GParameterAccumulator(16);
+
+	private GStreamingMultipartFile nextFile;
+
+	/**
+	 * Create a new GStreamingMultipartHttpServletRequest, reading the form fields up to the first file part.
+	 *
+	 * @param request the servlet request to wrap
+	 * @param itemIterator the iterator over the parts of the request
+	 * @param encoding the encoding to use for form fields
+	 * @param partLimiter the limiter counting the parts of the request
+	 * @throws MultipartException if the request could not be read
+	 */
+	public GStreamingMultipartHttpServletRequest(HttpServletRequest request, FileItemIterator itemIterator,
+			String encoding, GPartLimiter partLimiter) throws MultipartException {
+		super(request, new LinkedMultiValueMap<String, MultipartFile>(), new HashMap<String, String[]>(),
+				new HashMap<String, String>());
+		this.itemIterator = itemIterator;
+		this.encoding = encoding;
+		this.partLimiter = partLimiter;
+		setMultipartParameterContentTypes(this.parameterAccumulator.getContentTypes());
+		this.nextFile = advance();
+	}
+
+	/**
+	 * Return the next file part of the request, collecting any form fields on the way. The content of the
+	 * previously returned file part is no longer available once this method has been called.
+	 *
+	 * @return the next file part, or <code>null</code> if the request has no more file parts
+	 * @throws MultipartException if the request could not be read
+	 */
+	public GStreamingMultipartFile nextFile() throws MultipartException {
+		GStreamingMultipartFile file = this.nextFile;
+		this.nextFile = null;
+		if (file == null) {
+			file = advance();
+		}
+		return file;
+	}
+
+	private GStreamingMultipartFile advance() throws MultipartException {
+		try {
+			while (this.itemIterator.hasNext()) {
+				FileItemStream itemStream = this.itemIterator.next();
+				this.partLimiter.partStarted(itemStream);
+				if (!itemStream.isFormField()) {
+					return new GStreamingMultipartFile(itemStream);
+				}
+				String value = Streams.asString(itemStream.openStream(), this.encoding);
+				this.parameterAccumulator.add(itemStream.getFieldName(), value, itemStream.getContentType());
+			}
+			return null;
+		} catch (FileUploadException ex) {
+			throw GFileUploadSupport.toMultipartException(ex);
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			throw GFileUploadSupport.toMultipartException(ex.getCause());
+		} catch (IOException ex) {
+			throw new MultipartException("Could not read multipart servlet request", ex);
+		}
+	}
+
+	/**
+	 * Returns the parameters collected so far, freezing the values of the fields collected since the previous call.
+	 */
+	@Override
+	protected Map<String, String[]> getMultipartParameters() {
+		Map<String, String[]> multipartParameters = super.getMultipartParameters();
+		this.parameterAccumulator.updateParameters(multipartParameters);
+		return multipartParameters;
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p>Storage which writes the content of a file item to a temporary file.
+ *
+ * <p>The file is created when the storage is created and deleted by {@link #release()}, unless it has been
+ * moved to its destination by {@link #transferTo(File)}.
+ *
+ * @author kernel164
+ * @see GFileStorageFactory
+ */
+public class GTempFileStorage extends GStorage {
+
+	private final File file;
+
+	private FileOutputStream out;
+
+	private long size;
+
+	/**
+	 * Create a new storage backed by a new temporary file.
+	 *
+	 * @param repository the directory to create the file in, or <code>null</code> for the system default.
+	 * @exception IOException if the file could not be created.
+	 */
+	public GTempFileStorage(File repository) throws IOException {
+		this.file = File.createTempFile("upload_", ".tmp", repository);
+		this.out = new FileOutputStream(this.file);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		getOutputStream().write(b);
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		getOutputStream().write(b, off, len);
+		size += len;
+	}
+
+	/**
+	 * Closes the underlying file output stream. The content can still be read afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Returns the temporary file holding the content.
+	 *
+	 * @return the temporary file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	@Override
+	public byte[] toByteArray() throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("File too large for a single array: " + size + " bytes");
+		}
+		byte[] data = new byte[(int) size];
+		InputStream in = getInputStream();
+		try {
+			int pos = 0;
+			while (pos < data.length) {
+				int count = in.read(data, pos, data.length - pos);
+				if (count == -1) {
+					throw new IOException("Unexpected end of file " + file.getAbsolutePath());
+				}
+				pos += count;
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return data;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getInputStream();
+		try {
+			IOUtils.copyLarge(in, out);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Moves the temporary file to the given destination if possible, otherwise copies it with
+	 * {@link FileChannel#transferTo}. Once moved, the content is no longer available.
+	 */
+	@Override
+	public void transferTo(File dest) throws IOException {
+		close();
+		if (file.renameTo(dest)) {
+			return;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileOutputStream out = new FileOutputStream(dest);
+			try {
+				FileChannel source = in.getChannel();
+				FileChannel target = out.getChannel();
+				long position = 0;
+				while (position < size) {
+					long count = source.transferTo(position, size - position, target);
+					if (count <= 0) {
+						throw new IOException("Unexpected end of file " + file.getAbsolutePath());
+					}
+					position += count;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return file.exists();
+	}
+
+	@Override
+	public boolean isInMemory() {
+		return false;
+	}
+
+	@Override
+	public String getDescription() {
+		return "at [" + file.getAbsolutePath() + "]";
+	}
+
+	/**
+	 * Closes and deletes the temporary file.
+	 */
+	@Override
+	public void release() {
+		IOUtils.closeQuietly(out);
+		out = null;
+		if (file.exists() && !file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+
+	private OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			throw new IOException("Storage already closed");
+		}
+		return out;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * @author kernel164
+ */
+public class GDedupStoreTest {
+
+	@Test
+	public void rejectsAlgorithmsWhichAreNotCollisionResistant() {
+		GDedupStore dedupStore = new GDedupStore();
+		for (String algorithm : new String[] { "CRC32", "Adler32", "CRC32C", "MD5", "SHA-1", null }) {
+			try {
+				dedupStore.setAlgorithm(algorithm);
+				fail("Accepted " + algorithm);
+			} catch (IllegalArgumentException ex) {
+				// expected
+			}
+		}
+		assertEquals("SHA-256", dedupStore.getAlgorithm());
+
+		dedupStore.setAlgorithm("SHA-512");
+		assertEquals("SHA-512", dedupStore.getAlgorithm());
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * @author kernel164
+ */
+public class GFileItemTest {
+
+	private static final int SIZE = 1024 * 1024;
+
+	@Test
+	public void getSizeDoesNotReadTheContent() throws IOException {
+		final CountingStorage storage = new CountingStorage();
+		GFileItem item = newItem(storage);
+
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(SIZE, item.getSize());
+		}
+		assertEquals(0, storage.reads);
+		new GMultipartFile(item).toString();
+		assertEquals(0, storage.reads);
+	}
+
+	@Test
+	public void getSizeDoesNotAllocate() throws Exception {
+		GFileItem item = newItem(new CountingStorage());
+		Object threadBean = ManagementFactory.getThreadMXBean();
+		Method allocatedBytes;
+		try {
+			allocatedBytes = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+					long.class);
+		} catch (ClassNotFoundException ex) {
+			allocatedBytes = null;
+		}
+		Assume.assumeTrue(allocatedBytes != null && allocatedBytes.getDeclaringClass().isInstance(threadBean));
+		long threadId = Thread.currentThread().getId();
+
+		long sum = 0;
+		for (int i = 0; i < 10000; i++) {
+			sum += item.getSize();
+		}
+		long before = (Long) allocatedBytes.invoke(threadBean, threadId);
+		for (int i = 0; i < 10000; i++) {
+			sum += item.getSize();
+		}
+		long allocated = (Long) allocatedBytes.invoke(threadBean, threadId) - before;
+
+		assertEquals(20000L * SIZE, sum);
+		// a single copy of the content would be a megabyte; allow for the measurement itself
+		assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+	}
+
+	@Test
+	public void serializationRoundTripAboveThreshold() throws Exception {
+		GFileItemFactory factory = new GFileItemFactory();
+		GFileItem item = (GFileItem) factory.createItem("file", "application/octet-stream", false, "file.bin");
+		byte[] content = new byte[2 * GFileItemFactory.DEFAULT_SIZE_THRESHOLD];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		OutputStream out = item.getOutputStream();
+		out.write(content);
+		out.close();
+		assertFalse(item.isInMemory());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(bytes);
+		objects.writeObject(item);
+		objects.close();
+		item.delete();
+		GFileItem copy = (GFileItem) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		assertEquals(content.length, copy.getSize());
+		assertArrayEquals(content, copy.get());
+		assertEquals("file", copy.getFieldName());
+		assertEquals("file.bin", copy.getName());
+		copy.delete();
+	}
+
+	@Test
+	public void streamOfDeletedItemDoesNotReadPooledSegments() throws IOException {
+		GMemoryStorageFactory storageFactory = new GMemoryStorageFactory();
+		storageFactory.setPoolSize(16);
+		GFileItemFactory factory = new GFileItemFactory();
+		factory.setStorageFactory(storageFactory);
+		GFileItem item = (GFileItem) factory.createItem("file", "application/octet-stream", false, "file.bin");
+		OutputStream out = item.getOutputStream();
+		out.write(new byte[1000]);
+		out.close();
+		InputStream in = item.getInputStream();
+		assertEquals(0, in.read());
+		item.delete();
+
+		// the segments now hold the content of another item
+		GFileItem other = (GFileItem) factory.createItem("file", "application/octet-stream", false, "other.bin");
+		out = other.getOutputStream();
+		out.write(new byte[] { 's', 'e', 'c', 'r', 'e', 't' });
+		out.close();
+		try {
+			in.read();
+			fail("Read the content of a deleted item");
+		} catch (IOException ex) {
+			// expected
+		}
+		try {
+			in.read(new byte[16], 0, 16);
+			fail("Read the content of a deleted item");
+		} catch (IOException ex) {
+			// expected
+		}
+		other.delete();
+	}
+
+	private static GFileItem newItem(final GStorage storage) throws IOException {
+		GFileItemFactory factory = new GFileItemFactory();
+		factory.setSizeThreshold(Integer.MAX_VALUE);
+		factory.setStorageFactory(new GStorageFactory() {
+			public GStorage createStorage() {
+				return storage;
+			}
+		});
+		GFileItem item = (GFileItem) factory.createItem("file", "application/octet-stream", false, "file.bin");
+		OutputStream out = item.getOutputStream();
+		out.write(new byte[SIZE]);
+		out.close();
+		return item;
+	}
+
+	/**
+	 * Storage counting the reads of its content.
+	 */
+	private static class CountingStorage extends GChunkedBuffer {
+
+		private int reads;
+
+		@Override
+		public InputStream getInputStream() {
+			reads++;
+			return super.getInputStream();
+		}
+
+		@Override
+		public byte[] toByteArray() {
+			reads++;
+			return super.toByteArray();
+		}
+
+		@Override
+		public String toString(Charset charset) {
+			reads++;
+			return super.toString(charset);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			reads++;
+			super.writeTo(out);
+		}
+	}
+}
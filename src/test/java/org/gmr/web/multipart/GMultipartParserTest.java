@@ -0,0 +1,272 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.junit.Test;
+
+/**
+ * Compares the parts read by the native parser with those read by commons-fileupload from the same bodies, fed
+ * whole, split at every offset and byte by byte.
+ *
+ * @author kernel164
+ */
+public class GMultipartParserTest {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final String B = MultipartTestRequests.BOUNDARY;
+
+	@Test
+	public void fieldsAndFiles() throws Exception {
+		assertSameParts(new MultipartTestRequests("ISO-8859-1").field("token", "secret")
+				.file("file", "file.bin", 3000).field("tags", "a").field("tags", "b").toByteArray());
+	}
+
+	@Test
+	public void contentResemblingTheDelimiter() throws Exception {
+		assertSameParts(bytes("--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n" +
+				"Content-Type: text/plain\r\n" +
+				"\r\n" +
+				"\r\n--" + B.substring(0, B.length() - 1) + "x\r\n--" + B.substring(1) + "--" + B + "\r" +
+				"\r\n-\r\n--\r\n--" + B.substring(0, 4) + "\r\n" +
+				"\r\n--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"field\"\r\n" +
+				"\r\n" +
+				"value\r\n\r\n" +
+				"\r\n--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"empty\"\r\n" +
+				"\r\n" +
+				"\r\n--" + B + "--\r\n"));
+	}
+
+	@Test
+	public void preambleAndEpilogue() throws Exception {
+		assertSameParts(bytes("This is a preamble\r\n--" + B.substring(1) + "\r\n" +
+				"\r\n--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"field\"\r\n" +
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n" +
+				"\r\n" +
+				"value" +
+				"\r\n--" + B + "--\r\n" +
+				"This is an epilogue\r\n--" + B + "\r\n"));
+	}
+
+	@Test
+	public void partsWithoutFieldNameAreSkipped() throws Exception {
+		assertSameParts(bytes("--" + B + "\r\n" +
+				"Content-Type: text/plain\r\n" +
+				"\r\n" +
+				"anonymous" +
+				"\r\n--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"field\"\r\n" +
+				"\r\n" +
+				"value" +
+				"\r\n--" + B + "--"));
+	}
+
+	@Test
+	public void truncatedBodiesAreRejected() throws Exception {
+		byte[] body = new MultipartTestRequests("ISO-8859-1").field("field", "value").file("file", "file.bin", 100)
+				.toByteArray();
+		// the closing boundary is complete once its two dashes are read
+		int complete = body.length - 2;
+		for (int length = 0; length < body.length; length++) {
+			byte[] truncated = Arrays.copyOf(body, length);
+			GMultipartParser parser = new GMultipartParser(bytes(B), ISO_8859_1, new Collector());
+			parser.feed(truncated, 0, truncated.length);
+			assertEquals("length " + length, length >= complete, parser.isComplete());
+			try {
+				parser.finish();
+				assertTrue("length " + length, length >= complete);
+			} catch (IOException ex) {
+				assertFalse("length " + length, length >= complete);
+			}
+		}
+	}
+
+	@Test
+	public void headerSectionLimit() throws Exception {
+		StringBuilder header = new StringBuilder();
+		while (header.length() <= GMultipartParser.HEADER_PART_SIZE_MAX) {
+			header.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+		}
+		byte[] body = bytes("--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"field\"\r\n" +
+				header +
+				"\r\n" +
+				"value" +
+				"\r\n--" + B + "--\r\n");
+		try {
+			parseCommons(body);
+			fail("commons-fileupload accepted too large headers");
+		} catch (IOException ex) {
+			// expected
+		}
+		for (int chunk : new int[] { body.length, 1000, 1 }) {
+			try {
+				parseNative(body, chunk, GMultipartParser.DEFAULT_BUFFER_SIZE, null);
+				fail("Accepted too large headers, fed in chunks of " + chunk);
+			} catch (IOException ex) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void partLimiterHeaderSize() throws Exception {
+		byte[] small = bytes("--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"field\"\r\n" +
+				"\r\n" +
+				"value" +
+				"\r\n--" + B + "--\r\n");
+		byte[] large = bytes("--" + B + "\r\n" +
+				"Content-Disposition: form-data; name=\"field\"\r\n" +
+				"X-Padding: 01234567890123456789012345678901234567890123456789\r\n" +
+				"\r\n" +
+				"value" +
+				"\r\n--" + B + "--\r\n");
+		for (int chunk : new int[] { large.length, 7, 1 }) {
+			assertEquals(1, parseNative(small, chunk, GMultipartParser.DEFAULT_BUFFER_SIZE,
+					new GPartLimiter(-1, 100, -1, null)).size());
+			try {
+				parseNative(large, chunk, GMultipartParser.DEFAULT_BUFFER_SIZE, new GPartLimiter(-1, 100, -1, null));
+				fail("Accepted too large headers, fed in chunks of " + chunk);
+			} catch (GPartLimitExceededException ex) {
+				assertEquals("maxHeaderSize", ex.getLimitName());
+			}
+		}
+	}
+
+	/**
+	 * Asserts the native parser reads the same parts as commons-fileupload, whatever the chunks it is fed with.
+	 */
+	private static void assertSameParts(byte[] body) throws Exception {
+		List<String> expected = parseCommons(body);
+		assertFalse(expected.isEmpty());
+
+		Collector collector = new Collector();
+		GMultipartParser parser = new GMultipartParser(bytes(B), ISO_8859_1, collector);
+		parser.parse(new ByteArrayInputStream(body));
+		assertEquals(expected, collector.parts);
+
+		// the smallest buffer holds two delimiters
+		for (int bufferSize : new int[] { GMultipartParser.DEFAULT_BUFFER_SIZE, 1 }) {
+			assertEquals(expected, parseNative(body, body.length, bufferSize, null));
+			assertEquals(expected, parseNative(body, 1, bufferSize, null));
+			for (int split = 1; split < body.length; split++) {
+				collector = new Collector();
+				parser = new GMultipartParser(bytes(B), ISO_8859_1, collector, bufferSize);
+				parser.feed(body, 0, split);
+				parser.feed(body, split, body.length - split);
+				parser.finish();
+				assertEquals("split at " + split, expected, collector.parts);
+			}
+		}
+	}
+
+	private static List<String> parseNative(byte[] body, int chunk, int bufferSize, GPartLimiter partLimiter)
+			throws IOException {
+		Collector collector = new Collector();
+		GMultipartParser parser = new GMultipartParser(bytes(B), ISO_8859_1, collector, bufferSize);
+		parser.setPartLimiter(partLimiter);
+		for (int off = 0; off < body.length; off += chunk) {
+			parser.feed(body, off, Math.min(chunk, body.length - off));
+		}
+		parser.finish();
+		return collector.parts;
+	}
+
+	private static List<String> parseCommons(byte[] body) throws IOException, FileUploadException {
+		List<String> parts = new ArrayList<String>();
+		ServletFileUpload fileUpload = new ServletFileUpload();
+		fileUpload.setHeaderEncoding("ISO-8859-1");
+		FileItemIterator itemIterator = fileUpload.getItemIterator(MultipartTestRequests.request(body, body.length,
+				"ISO-8859-1"));
+		while (itemIterator.hasNext()) {
+			FileItemStream itemStream = itemIterator.next();
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			InputStream in = itemStream.openStream();
+			byte[] transfer = new byte[1024];
+			int count;
+			while ((count = in.read(transfer)) != -1) {
+				content.write(transfer, 0, count);
+			}
+			parts.add(describe(itemStream.getFieldName(), itemStream.getName(), itemStream.getContentType(),
+					itemStream.isFormField(), content));
+		}
+		return parts;
+	}
+
+	private static String describe(String fieldName, String fileName, String contentType, boolean formField,
+			ByteArrayOutputStream content) {
+		return fieldName + "|" + fileName + "|" + contentType + "|" + formField + "|"
+				+ new String(content.toByteArray(), ISO_8859_1);
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(ISO_8859_1);
+	}
+
+	/**
+	 * Collects the parts with a field name, as described by {@link #describe}.
+	 */
+	private static class Collector implements GMultipartParser.Handler {
+
+		private final List<String> parts = new ArrayList<String>();
+
+		private GPartHeaders headers;
+
+		private ByteArrayOutputStream content;
+
+		public OutputStream startPart(GPartHeaders headers) {
+			if (headers.getFieldName() == null) {
+				return null;
+			}
+			this.headers = headers.copy();
+			this.content = new ByteArrayOutputStream();
+			return content;
+		}
+
+		public void endPart() {
+			if (content != null) {
+				parts.add(describe(headers.getFieldName(), headers.getFileName(), headers.getContentType(),
+						headers.isFormField(), content));
+				content = null;
+			}
+		}
+	}
+}
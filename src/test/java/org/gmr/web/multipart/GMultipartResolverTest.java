@@ -0,0 +1,496 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileUpload;
+import org.junit.Test;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+/**
+ * @author kernel164
+ */
+public class GMultipartResolverTest {
+
+	private static final String[] ENCODINGS = { "UTF-8", "windows-1252", "US-ASCII", "ISO-8859-15" };
+
+	@Test
+	public void prepareFileUploadUnderConcurrentRequestsAndReconfiguration() throws Exception {
+		final GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setDefaultEncoding("ISO-8859-1");
+		resolver.setMaxUploadSize(1000000);
+		final ConcurrentMap<FileUpload, String> handedOut = new ConcurrentHashMap<FileUpload, String>();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(9);
+		try {
+			List<Future<?>> requests = new ArrayList<Future<?>>();
+			for (int t = 0; t < 8; t++) {
+				final int thread = t;
+				requests.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < 2000; i++) {
+							String encoding = ENCODINGS[(thread + i) % ENCODINGS.length];
+							FileUpload fileUpload = resolver.prepareFileUpload(encoding);
+							assertEquals(encoding, fileUpload.getHeaderEncoding());
+							long sizeMax = fileUpload.getSizeMax();
+							assertTrue("sizeMax " + sizeMax, sizeMax == 1000000 || sizeMax == 2000000);
+							handedOut.put(fileUpload, encoding);
+							if (i % 100 == 0) {
+								resolveUtf8Request(resolver);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			Future<?> reconfiguration = executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; running.get(); i++) {
+						resolver.setMaxUploadSize(i % 2 == 0 ? 2000000 : 1000000);
+						Thread.yield();
+					}
+					return null;
+				}
+			});
+			start.countDown();
+			for (Future<?> request : requests) {
+				request.get(60, TimeUnit.SECONDS);
+			}
+			running.set(false);
+			reconfiguration.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// instances handed out to requests are never reconfigured afterwards
+		for (Map.Entry<FileUpload, String> entry : handedOut.entrySet()) {
+			assertEquals(entry.getValue(), entry.getKey().getHeaderEncoding());
+		}
+		assertEquals("ISO-8859-1", resolver.getFileUpload().getHeaderEncoding());
+	}
+
+	@Test
+	public void incrementalQueryParameterDoesNotReadTheBody() {
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setResolveIncrementally(true);
+		GIncrementalMultipartHttpServletRequest request = (GIncrementalMultipartHttpServletRequest) resolver
+				.resolveMultipart(new MultipartTestRequests("ISO-8859-1").query("page", "2").field("token", "secret")
+						.file("file", "file.bin", 100000).toRequest());
+		try {
+			assertEquals("2", request.getParameter("page"));
+			assertTrue(request.getFileItems().isEmpty());
+
+			assertEquals("secret", request.getParameter("token"));
+			assertEquals(1, request.getFileItems().size());
+			assertFalse(request.isComplete());
+
+			assertNull(request.getParameter("missing"));
+			assertTrue(request.isComplete());
+		} finally {
+			resolver.cleanupMultipart(request);
+		}
+	}
+
+	@Test
+	public void incrementalRuntimeFailureIsLatched() {
+		GMemoryBudget memoryBudget = new GMemoryBudget(50000);
+		memoryBudget.setPolicy(GMemoryBudget.Policy.REJECT);
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setResolveIncrementally(true);
+		resolver.setMaxInMemorySize(1000000);
+		resolver.setMemoryBudget(memoryBudget);
+		GIncrementalMultipartHttpServletRequest request = (GIncrementalMultipartHttpServletRequest) resolver
+				.resolveMultipart(new MultipartTestRequests("ISO-8859-1").field("token", "secret")
+						.file("file", "file.bin", 100000).field("after", "value").toRequest());
+		try {
+			assertEquals("secret", request.getParameter("token"));
+			MultipartException failure = null;
+			try {
+				request.getParameter("after");
+				fail("Upload exceeding the memory budget was read");
+			} catch (GMemoryBudgetExceededException ex) {
+				failure = ex;
+			}
+			// later accesses fail the same way instead of parsing from the middle of the file
+			try {
+				request.getParameter("after");
+				fail("Failed request was read further");
+			} catch (MultipartException ex) {
+				assertSame(failure, ex);
+			}
+		} finally {
+			resolver.cleanupMultipart(request);
+		}
+		assertEquals(50000, memoryBudget.getAvailable());
+	}
+
+	@Test
+	public void failedUploadToFileSinkLeavesNoFile() throws Exception {
+		File directory = Files.createTempDirectory("gmultipart").toFile();
+		try {
+			GFileSink sink = new GFileSink();
+			sink.setDirectory(directory);
+			GMultipartResolver resolver = new GMultipartResolver();
+			resolver.setPartSinks(Collections.<String, GPartSink>singletonMap("file", sink));
+			resolver.setMaxUploadSize(50000);
+			byte[] body = new MultipartTestRequests("ISO-8859-1").file("file", "file.bin", 100000).toByteArray();
+
+			// the request exceeds the maximum upload size while the part is read
+			assertResolveFails(resolver, MultipartTestRequests.request(body, -1, "ISO-8859-1"));
+			assertEquals(0, directory.list().length);
+
+			// the part exceeds the maximum file size while it is written
+			resolver.setMaxUploadSize(-1);
+			resolver.setMaxUploadSizePerFile(1000);
+			assertResolveFails(resolver, MultipartTestRequests.request(body, body.length, "ISO-8859-1"));
+			assertEquals(0, directory.list().length);
+
+			// closing the stream after a failed write discards the partial content
+			GFileItem item = (GFileItem) resolver.getFileItemFactory().createItem("file", null, false, "file.bin");
+			OutputStream out = item.getOutputStream();
+			try {
+				out.write(body);
+				fail("Write exceeding the maximum file size succeeded");
+			} catch (IOException ex) {
+				// expected
+			}
+			out.close();
+			assertEquals(0, directory.list().length);
+			item.delete();
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void failedUploadIsNotShared() throws IOException {
+		GDedupStore dedupStore = new GDedupStore();
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setDedupStore(dedupStore);
+		resolver.setMaxUploadSizePerFile(1000);
+
+		GFileItem item = (GFileItem) resolver.getFileItemFactory().createItem("file", null, false, "file.bin");
+		OutputStream out = item.getOutputStream();
+		out.write(new byte[500]);
+		try {
+			out.write(new byte[1000]);
+			fail("Write exceeding the maximum file size succeeded");
+		} catch (IOException ex) {
+			// expected
+		}
+		out.close();
+		item.delete();
+		assertEquals(0, dedupStore.getEntryCount());
+		assertEquals(0, dedupStore.getMissCount());
+
+		item = (GFileItem) resolver.getFileItemFactory().createItem("file", null, false, "file.bin");
+		out = item.getOutputStream();
+		out.write(new byte[500]);
+		out.close();
+		assertEquals(1, dedupStore.getEntryCount());
+		item.delete();
+	}
+
+	@Test
+	public void failedUploadIsNotProcessed() throws IOException {
+		final AtomicInteger processed = new AtomicInteger();
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setPartProcessors(Collections.<String, GPartProcessor>singletonMap("count", new GPartProcessor() {
+			public Object process(FileItem fileItem) {
+				return processed.incrementAndGet();
+			}
+		}));
+		resolver.setMaxUploadSizePerFile(1000);
+
+		GFileItem item = (GFileItem) resolver.getFileItemFactory().createItem("file", null, false, "file.bin");
+		OutputStream out = item.getOutputStream();
+		try {
+			out.write(new byte[2000]);
+			fail("Write exceeding the maximum file size succeeded");
+		} catch (IOException ex) {
+			// expected
+		}
+		out.close();
+		assertNull(item.getProcessing());
+		assertEquals(0, processed.get());
+		item.delete();
+	}
+
+	@Test
+	public void resolveMultipartReturnsTheFedRequest() {
+		GMultipartResolver resolver = new GMultipartResolver();
+		byte[] body = new MultipartTestRequests("ISO-8859-1").field("token", "secret").file("file", "file.bin", 20000)
+				.toByteArray();
+		HttpServletRequest request = MultipartTestRequests.request(body, body.length, "ISO-8859-1");
+		GMultipartFeed feed = resolver.openFeed(request);
+		for (int off = 0; off < body.length; off += 1000) {
+			feed.feed(body, off, Math.min(1000, body.length - off));
+		}
+		MultipartHttpServletRequest fed = feed.finish();
+		request.setAttribute(GMultipartResolver.MULTIPART_REQUEST_ATTRIBUTE, fed);
+
+		// the body has been consumed: the dispatched request is resolved from the attribute
+		MultipartHttpServletRequest resolved = resolver.resolveMultipart(request);
+		try {
+			assertSame(fed, resolved);
+			assertEquals("secret", resolved.getParameter("token"));
+			assertEquals(20000, resolved.getFile("file").getSize());
+			assertNull(request.getAttribute(GMultipartResolver.MULTIPART_REQUEST_ATTRIBUTE));
+		} finally {
+			resolver.cleanupMultipart(resolved);
+		}
+	}
+
+	@Test
+	public void streamingRejectsTooManyParts() {
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setStreaming(true);
+		resolver.setMaxPartCount(10);
+		try {
+			resolver.resolveMultipart(manyFields(11).toRequest());
+			fail("Request with too many parts was resolved");
+		} catch (GPartLimitExceededException ex) {
+			assertEquals("maxPartCount", ex.getLimitName());
+		}
+
+		GStreamingMultipartHttpServletRequest request = (GStreamingMultipartHttpServletRequest) resolver
+				.resolveMultipart(manyFields(10).toRequest());
+		assertEquals(10, request.getParameterMap().size());
+		assertNull(request.nextFile());
+	}
+
+	@Test
+	public void publishPartsRejectsTooManyParts() {
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setMaxPartCount(10);
+		final AtomicInteger parts = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		resolver.publishParts(manyFields(11).toRequest()).subscribe(new GFlow.Subscriber<GPart>() {
+
+			public void onSubscribe(GFlow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(GPart part) {
+				parts.incrementAndGet();
+				part.subscribe(new GFlow.Subscriber<ByteBuffer>() {
+
+					public void onSubscribe(GFlow.Subscription subscription) {
+						subscription.request(Long.MAX_VALUE);
+					}
+
+					public void onNext(ByteBuffer chunk) {
+					}
+
+					public void onError(Throwable throwable) {
+					}
+
+					public void onComplete() {
+					}
+				});
+			}
+
+			public void onError(Throwable throwable) {
+				error.set(throwable);
+			}
+
+			public void onComplete() {
+			}
+		});
+		assertEquals(10, parts.get());
+		assertTrue(error.get() instanceof GPartLimitExceededException);
+	}
+
+	@Test
+	public void repeatedFieldsInIncrementalAndStreamingModes() {
+		MultipartTestRequests body = new MultipartTestRequests("ISO-8859-1");
+		for (int i = 0; i < 5000; i++) {
+			body.field("tags", "tag" + i);
+		}
+		body.file("file", "file.bin", 100).field("tags", "last");
+		byte[] content = body.toByteArray();
+
+		GMultipartResolver resolver = new GMultipartResolver();
+		resolver.setResolveIncrementally(true);
+		MultipartHttpServletRequest incremental = resolver.resolveMultipart(
+				MultipartTestRequests.request(content, content.length, "ISO-8859-1"));
+		try {
+			assertEquals("tag0", incremental.getParameter("tags"));
+			assertNotNull(incremental.getFile("file"));
+			String[] values = incremental.getParameterValues("tags");
+			assertEquals(5001, values.length);
+			assertEquals("tag4999", values[4999]);
+			assertEquals("last", values[5000]);
+		} finally {
+			resolver.cleanupMultipart(incremental);
+		}
+
+		resolver = new GMultipartResolver();
+		resolver.setStreaming(true);
+		GStreamingMultipartHttpServletRequest streaming = (GStreamingMultipartHttpServletRequest) resolver
+				.resolveMultipart(MultipartTestRequests.request(content, content.length, "ISO-8859-1"));
+		assertEquals(5000, streaming.getParameterValues("tags").length);
+		assertNotNull(streaming.nextFile());
+		assertNull(streaming.nextFile());
+		String[] values = streaming.getParameterValues("tags");
+		assertEquals(5001, values.length);
+		assertEquals("tag0", values[0]);
+		assertEquals("last", values[5000]);
+	}
+
+	@Test
+	public void lateContentSubscriberIsTerminated() {
+		GMultipartResolver resolver = new GMultipartResolver();
+
+		// the parts are cancelled before the content of the current part is subscribed to
+		final List<GPart> parts = new ArrayList<GPart>();
+		final List<GFlow.Subscription> subscriptions = new ArrayList<GFlow.Subscription>();
+		resolver.publishParts(manyFields(2).toRequest()).subscribe(new PartSubscriber(parts, subscriptions));
+		subscriptions.get(0).request(1);
+		assertEquals(1, parts.size());
+		subscriptions.get(0).cancel();
+		ContentSubscriber content = new ContentSubscriber();
+		parts.get(0).subscribe(content);
+		assertTrue(content.error instanceof IllegalStateException);
+
+		// the request fails before the content of the current part is subscribed to
+		parts.clear();
+		subscriptions.clear();
+		PartSubscriber partSubscriber = new PartSubscriber(parts, subscriptions);
+		resolver.publishParts(manyFields(2).toRequest()).subscribe(partSubscriber);
+		subscriptions.get(0).request(1);
+		subscriptions.get(0).request(0);
+		assertTrue(partSubscriber.error instanceof IllegalArgumentException);
+		content = new ContentSubscriber();
+		parts.get(0).subscribe(content);
+		assertSame(partSubscriber.error, content.error);
+	}
+
+	private static class PartSubscriber implements GFlow.Subscriber<GPart> {
+
+		private final List<GPart> parts;
+
+		private final List<GFlow.Subscription> subscriptions;
+
+		private Throwable error;
+
+		PartSubscriber(List<GPart> parts, List<GFlow.Subscription> subscriptions) {
+			this.parts = parts;
+			this.subscriptions = subscriptions;
+		}
+
+		public void onSubscribe(GFlow.Subscription subscription) {
+			subscriptions.add(subscription);
+		}
+
+		public void onNext(GPart part) {
+			parts.add(part);
+		}
+
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		public void onComplete() {
+		}
+	}
+
+	private static class ContentSubscriber implements GFlow.Subscriber<ByteBuffer> {
+
+		private Throwable error;
+
+		public void onSubscribe(GFlow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		public void onNext(ByteBuffer chunk) {
+		}
+
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		public void onComplete() {
+		}
+	}
+
+	private static MultipartTestRequests manyFields(int count) {
+		MultipartTestRequests body = new MultipartTestRequests("ISO-8859-1");
+		for (int i = 0; i < count; i++) {
+			body.field("field" + i, "value");
+		}
+		return body;
+	}
+
+	private static void assertResolveFails(GMultipartResolver resolver, HttpServletRequest request) {
+		try {
+			resolver.cleanupMultipart(resolver.resolveMultipart(request));
+			fail("Upload exceeding its limit was resolved");
+		} catch (MultipartException ex) {
+			// expected
+		}
+	}
+
+	private static void resolveUtf8Request(GMultipartResolver resolver) {
+		String value = "gr\u00fc\u00dfe \u20ac";
+		MultipartHttpServletRequest request = resolver.resolveMultipart(
+				new MultipartTestRequests("UTF-8").field("f\u00e9ld", value).toRequest());
+		try {
+			assertEquals(value, request.getParameter("f\u00e9ld"));
+		} finally {
+			resolver.cleanupMultipart(request);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gmr.web.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>Builds multipart bodies and the servlet requests carrying them, for the tests of this package.
+ *
+ * @author kernel164
+ */
+final class MultipartTestRequests {
+
+	static final String BOUNDARY = "gmultipart-boundary";
+
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+	private final String encoding;
+
+	private final Map<String, String> queryParameters = new HashMap<String, String>();
+
+	/**
+	 * Create a new body, encoding headers and field values with the given encoding.
+	 */
+	MultipartTestRequests(String encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Appends a form field.
+	 */
+	MultipartTestRequests field(String name, String value) {
+		return part("Content-Disposition: form-data; name=\"" + name + "\"\r\n", bytes(value));
+	}
+
+	/**
+	 * Appends an uploaded file of the given size, filled with a repeating pattern.
+	 */
+	MultipartTestRequests file(String name, String fileName, int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) ('a' + i % 26);
+		}
+		return part("Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n" +
+				"Content-Type: application/octet-stream\r\n", content);
+	}
+
+	/**
+	 * Adds a parameter to the query string of the request.
+	 */
+	MultipartTestRequests query(String name, String value) {
+		queryParameters.put(name, value);
+		return this;
+	}
+
+	private MultipartTestRequests part(String headers, byte[] content) {
+		write(bytes("--" + BOUNDARY + "\r\n" + headers + "\r\n"));
+		write(content);
+		write(bytes("\r\n"));
+		return this;
+	}
+
+	/**
+	 * Returns the body, closed with the final boundary.
+	 */
+	byte[] toByteArray() {
+		ByteArrayOutputStream complete = new ByteArrayOutputStream();
+		byte[] parts = body.toByteArray();
+		complete.write(parts, 0, parts.length);
+		byte[] end = bytes("--" + BOUNDARY + "--\r\n");
+		complete.write(end, 0, end.length);
+		return complete.toByteArray();
+	}
+
+	/**
+	 * Returns a request carrying the body, with its content length.
+	 */
+	HttpServletRequest toRequest() {
+		byte[] content = toByteArray();
+		return request(content, content.length, encoding, queryParameters);
+	}
+
+	private void write(byte[] b) {
+		body.write(b, 0, b.length);
+	}
+
+	private byte[] bytes(String value) {
+		try {
+			return value.getBytes(encoding);
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	/**
+	 * Returns a POST request carrying the given multipart body.
+	 *
+	 * @param body the body
+	 * @param contentLength the declared content length, -1 if unknown
+	 * @param encoding the character encoding of the request, may be <code>null</code>
+	 */
+	static HttpServletRequest request(byte[] body, int contentLength, String encoding) {
+		return request(body, contentLength, encoding, Collections.<String, String>emptyMap());
+	}
+
+	private static HttpServletRequest request(byte[] body, final int contentLength, final String encoding,
+			final Map<String, String> queryParameters) {
+		final InputStream in = new ByteArrayInputStream(body);
+		final ServletInputStream inputStream = new ServletInputStream() {
+
+			@Override
+			public int read() throws IOException {
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return in.read(b, off, len);
+			}
+		};
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		return (HttpServletRequest) Proxy.newProxyInstance(MultipartTestRequests.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("getMethod")) {
+							return "POST";
+						} else if (name.equals("getContentType")) {
+							return "multipart/form-data; boundary=" + BOUNDARY;
+						} else if (name.equals("getContentLength")) {
+							return contentLength;
+						} else if (name.equals("getCharacterEncoding")) {
+							return encoding;
+						} else if (name.equals("getInputStream")) {
+							return inputStream;
+						} else if (name.equals("getAttribute")) {
+							return attributes.get(args[0]);
+						} else if (name.equals("setAttribute")) {
+							attributes.put((String) args[0], args[1]);
+							return null;
+						} else if (name.equals("removeAttribute")) {
+							attributes.remove(args[0]);
+							return null;
+						} else if (name.equals("getParameter")) {
+							return queryParameters.get(args[0]);
+						} else if (name.equals("getParameterMap")) {
+							return Collections.emptyMap();
+						} else if (name.equals("getParameterNames")) {
+							return Collections.enumeration(Collections.emptyList());
+						} else if (name.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (name.equals("equals")) {
+							return proxy == args[0];
+						} else if (method.getReturnType() == int.class) {
+							return 0;
+						} else if (method.getReturnType() == boolean.class) {
+							return false;
+						}
+						return null;
+					}
+				});
+	}
+}